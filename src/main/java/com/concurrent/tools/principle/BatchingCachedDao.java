@@ -0,0 +1,350 @@
+package com.concurrent.tools.principle;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * @program: su-concurrent
+ * @description: 批量加载的缓存（DataLoader 风格）
+ *      问题：
+ *          一次请求往往要查几十行数据，每一行都单独走 queryOne，每次未命中都是一次数据库往返
+ *      思路：
+ *          1. 在 SingleFlightCachedDao 的基础上，缓存的仍然是 Future，同一个 key 只加载一次
+ *          2. 未命中的 key 不立刻查库，而是放入同一条 sql 的"批次"中，等待一个很短的窗口（默认 200 微秒）
+ *             窗口内到达的所有未命中合并成一次 GenericDao.queryMany 调用，结果再分发给各自的 Future
+ *          3. 批次达到上限时不用等窗口结束，由放入的线程直接发出
+ *          4. queryMany 一次性放入多个 key，然后立刻发出批次
+ *          5. 定时线程只负责在窗口到期时把批次交给工作线程查库，不同 sql 的批次不会排在同一次数据库往返后面
+ *          6. close 之后不再接受新的未命中（直接失败），已经收集的批次立即发出
+ *          7. 查库失败（包括 Error）或返回的条数不对时，整批的 Future 都以异常完成并移除，下次重新加载
+ *      一致性：
+ *          发出批次的线程持有读锁，update 持有写锁，与 SingleFlightCachedDao 相同
+ * @author: Su
+ * @create: 2026-10-19 19:10
+ **/
+public class BatchingCachedDao<T> implements AutoCloseable {
+    private final ConcurrentHashMap<SqlPair, CompletableFuture<T>> map = new ConcurrentHashMap<>();
+    // 每条 sql 一个批次收集器
+    private final ConcurrentHashMap<String, Batcher> batchers = new ConcurrentHashMap<>();
+    private final ReentrantReadWriteLock loadLock = new ReentrantReadWriteLock();
+    // 负责窗口到期后把批次交给工作线程
+    private final ScheduledExecutorService scheduler;
+    // 执行到期批次的查询
+    private final ExecutorService workers;
+    private volatile boolean closed;
+    private final long windowNanos;
+    private final int maxBatchSize;
+    //不带缓存机制的dao
+    private final GenericDao genericDao;
+
+    public BatchingCachedDao(GenericDao genericDao) {
+        this(genericDao, 200, TimeUnit.MICROSECONDS, 128);
+    }
+
+    public BatchingCachedDao(GenericDao genericDao, long window, TimeUnit unit, int maxBatchSize) {
+        this.genericDao = genericDao;
+        this.windowNanos = unit.toNanos(window);
+        this.maxBatchSize = maxBatchSize;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "cache-batch-dispatcher");
+            t.setDaemon(true);
+            return t;
+        });
+        this.workers = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "cache-batch-loader");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        LatencyDatabase db = new LatencyDatabase(16, 1000, 0.2, 0, 0, 0, 1000);
+        BatchingCachedDao<Object> closed;
+        try (BatchingCachedDao<Object> dao = new BatchingCachedDao<>(new LatencyGenericDao<>(db))) {
+            closed = dao;
+            // 一次请求要 50 行
+            List<Object[]> ids = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                ids.add(new Object[]{i});
+            }
+            dao.queryMany(Object.class, "select * from user where id = ?", ids);
+            // 20 个线程各自查询一行 窗口内的未命中合并成一次查询
+            Thread[] threads = new Thread[20];
+            for (int i = 0; i < threads.length; i++) {
+                int id = 100 + i;
+                threads[i] = new Thread(() -> dao.queryOne(Object.class, "select * from user where id = ?", id));
+                threads[i].start();
+            }
+            for (Thread t : threads) {
+                t.join();
+            }
+            System.out.println("70 个未命中的数据库往返次数: " + db.queries.sum());
+            if (db.queries.sum() >= 70) {
+                throw new IllegalStateException("未命中没有合并: " + db.queries.sum());
+            }
+        }
+        // 关闭后的未命中立即失败 不会永远等待
+        try {
+            closed.queryOne(Object.class, "select * from user where id = ?", 1_000);
+            throw new IllegalStateException("关闭后仍然接受查询");
+        } catch (IllegalStateException e) {
+            System.out.println("关闭后查询: " + e.getMessage());
+        }
+        // 批量查询抛 Error 或者返回的条数不对时 整批失败并移除 之后可以重新加载
+        AtomicInteger calls = new AtomicInteger();
+        try (BatchingCachedDao<Object> failing = new BatchingCachedDao<>(new GenericDao<Object>() {
+            @Override
+            public List<Object> queryMany(Class<Object> beanClass, String sql, List<Object[]> paramsList) {
+                int call = calls.incrementAndGet();
+                if (call == 1) {
+                    throw new StackOverflowError("模拟查库时的 Error");
+                }
+                List<Object> rows = new ArrayList<>();
+                for (Object[] params : paramsList) {
+                    rows.add(params[0]);
+                }
+                // 第二次少返回一行
+                return call == 2 ? rows.subList(1, rows.size()) : rows;
+            }
+        })) {
+            List<Object[]> ids = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                ids.add(new Object[]{i});
+            }
+            try {
+                failing.queryMany(Object.class, "select * from user where id = ?", ids);
+            } catch (StackOverflowError e) {
+                System.out.println("第一次加载失败: " + e.getMessage());
+            }
+            String shortResult = null;
+            try {
+                failing.queryMany(Object.class, "select * from user where id = ?", ids);
+            } catch (IllegalStateException e) {
+                shortResult = e.getMessage();
+            }
+            System.out.println("第二次加载失败: " + shortResult);
+            List<Object> rows = failing.queryMany(Object.class, "select * from user where id = ?", ids);
+            if (shortResult == null || rows.size() != 50 || !Integer.valueOf(49).equals(rows.get(49)) || failing.size() != 50) {
+                throw new IllegalStateException("失败的批次没有移除或者结果错位: " + rows);
+            }
+        }
+    }
+
+    public T queryOne(Class<T> beanClass, String sql, Object... params) {
+        // 命中时用线程私有的 SqlProbe 查找 不创建 key
+        CompletableFuture<T> future = map.get(SqlProbe.of(sql, params));
+        if (future == null) {
+            SqlPair key = new SqlPair(sql, params);
+            CompletableFuture<T> created = new CompletableFuture<>();
+            future = map.putIfAbsent(key, created);
+            if (future == null) {
+                future = created;
+                batcherFor(beanClass, sql).add(key, created, false);
+            }
+        }
+        return await(future);
+    }
+
+    /**
+     * 同一条 sql 查询多组参数 未命中的部分合并成一次数据库往返
+     */
+    public List<T> queryMany(Class<T> beanClass, String sql, List<Object[]> paramsList) {
+        List<CompletableFuture<T>> futures = new ArrayList<>(paramsList.size());
+        Batcher batcher = batcherFor(beanClass, sql);
+        boolean added = false;
+        for (Object[] params : paramsList) {
+            CompletableFuture<T> future = map.get(SqlProbe.of(sql, params));
+            if (future == null) {
+                SqlPair key = new SqlPair(sql, params);
+                CompletableFuture<T> created = new CompletableFuture<>();
+                future = map.putIfAbsent(key, created);
+                if (future == null) {
+                    future = created;
+                    batcher.add(key, created, true);
+                    added = true;
+                }
+            }
+            futures.add(future);
+        }
+        if (added) {
+            // 调用者马上就要等待结果了 不必再等窗口
+            batcher.flush();
+        }
+        List<T> result = new ArrayList<>(futures.size());
+        for (CompletableFuture<T> future : futures) {
+            result.add(await(future));
+        }
+        return result;
+    }
+
+    private Batcher batcherFor(Class<T> beanClass, String sql) {
+        return batchers.computeIfAbsent(sql, s -> new Batcher(beanClass, s));
+    }
+
+    private T await(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    public int update(String sql, Object... params) {
+        loadLock.writeLock().lock();
+        try {
+            int rows = genericDao.update(sql, params);
+            map.clear();
+            return rows;
+        } finally {
+            loadLock.writeLock().unlock();
+        }
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        // flush 要拿批次的锁 正在 add 的线程放入的 key 也会被发出 之后的 add 都能看到 closed
+        for (Batcher batcher : batchers.values()) {
+            batcher.flush();
+        }
+        scheduler.shutdownNow();
+        workers.shutdown();
+    }
+
+    /**
+     * 同一条 sql 的批次收集器
+     */
+    final class Batcher {
+        private final Class<T> beanClass;
+        private final String sql;
+        private final ReentrantLock lock = new ReentrantLock();
+        private List<SqlPair> keys = new ArrayList<>();
+        private List<CompletableFuture<T>> futures = new ArrayList<>();
+
+        Batcher(Class<T> beanClass, String sql) {
+            this.beanClass = beanClass;
+            this.sql = sql;
+        }
+
+        /**
+         * @param deferFlush 由调用者稍后统一 flush 时不用安排窗口
+         */
+        void add(SqlPair key, CompletableFuture<T> future, boolean deferFlush) {
+            boolean full;
+            lock.lock();
+            try {
+                if (closed) {
+                    map.remove(key, future);
+                    future.completeExceptionally(new IllegalStateException("batching cache closed"));
+                    return;
+                }
+                keys.add(key);
+                futures.add(future);
+                full = keys.size() >= maxBatchSize;
+                // 批次中的第一个 安排窗口到期后发出
+                if (keys.size() == 1 && !deferFlush) {
+                    scheduler.schedule(this::flushAsync, windowNanos, TimeUnit.NANOSECONDS);
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (full) {
+                flush();
+            }
+        }
+
+        // 取走当前批次（换成新的空批次）并查询 批次为空则什么都不做
+        void flush() {
+            List<SqlPair> batchKeys;
+            List<CompletableFuture<T>> batchFutures;
+            lock.lock();
+            try {
+                if (keys.isEmpty()) {
+                    return;
+                }
+                batchKeys = keys;
+                batchFutures = futures;
+                keys = new ArrayList<>();
+                futures = new ArrayList<>();
+            } finally {
+                lock.unlock();
+            }
+            dispatch(batchKeys, batchFutures);
+        }
+
+        // 窗口到期时在定时线程上调用 交给工作线程取走批次并查询
+        private void flushAsync() {
+            try {
+                workers.execute(this::flush);
+            } catch (RejectedExecutionException e) {
+                // 已经关闭 就地发出
+                flush();
+            }
+        }
+
+        private void dispatch(List<SqlPair> batchKeys, List<CompletableFuture<T>> batchFutures) {
+            List<Object[]> paramsList = new ArrayList<>(batchKeys.size());
+            for (SqlPair key : batchKeys) {
+                paramsList.add(key.getParams());
+            }
+            loadLock.readLock().lock();
+            try {
+                List<T> values;
+                try {
+                    values = genericDao.queryMany(beanClass, sql, paramsList);
+                } catch (Throwable e) {
+                    // 包括 Error 否则这一批的 Future 永远不会完成 等待的线程全部阻塞
+                    fail(batchKeys, batchFutures, e);
+                    if (e instanceof Error) {
+                        throw (Error) e;
+                    }
+                    return;
+                }
+                // 先检查条数再分发 不能完成了一部分之后才发现结果不够
+                if (values == null || values.size() != batchKeys.size()) {
+                    fail(batchKeys, batchFutures, new IllegalStateException("queryMany returned "
+                            + (values == null ? null : values.size()) + " rows for " + batchKeys.size() + " keys"));
+                    return;
+                }
+                // 把结果分发给各自的等待者
+                for (int i = 0; i < batchKeys.size(); i++) {
+                    T value = values.get(i);
+                    if (value == null) {
+                        map.remove(batchKeys.get(i), batchFutures.get(i));
+                    }
+                    batchFutures.get(i).complete(value);
+                }
+            } finally {
+                loadLock.readLock().unlock();
+            }
+        }
+
+        private void fail(List<SqlPair> batchKeys, List<CompletableFuture<T>> batchFutures, Throwable e) {
+            for (int i = 0; i < batchKeys.size(); i++) {
+                map.remove(batchKeys.get(i), batchFutures.get(i));
+                batchFutures.get(i).completeExceptionally(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,514 @@
+package com.concurrent.tools.principle;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ * @program: su-concurrent
+ * @description: 有容量上限的缓存（W-TinyLFU 淘汰策略）
+ *      GenericCachedDao 的问题：没有考虑缓存容量，map 无限增长，要么 OOM 要么只能定期重启
+ *      W-TinyLFU（Caffeine 使用的策略）：
+ *          1. 窗口区 window（约 1% 容量，LRU）：新数据先进入窗口，应对突发的新热点
+ *          2. 主区 main = 试用区 probation（20%） + 保护区 protected（80%），整体是分段 LRU（SLRU）
+ *              窗口淘汰出来的数据作为候选者进入试用区，试用区数据再次被访问则晋升到保护区
+ *          3. 准入策略 TinyLFU：容量超出时，候选者和试用区队头（淘汰者）比较历史访问频率，频率高的留下
+ *              频率用 Count-Min Sketch 记录（FrequencySketch，每个计数器 4 bit），并定期减半以适应热点变化
+ *      实现要点：
+ *          1. 三个区都是侵入式双向链表，节点挪动、淘汰都是 O(1)
+ *          2. 读操作无锁：只读 ConcurrentHashMap，再把访问记录放入分段的环形缓冲区（满了就丢弃，只是少记一次频率）
+ *              由拿到淘汰锁的线程批量回放这些访问记录，这样读线程之间、读写之间都不会竞争同一把锁
+ *          3. 支持按权重计算容量（Weigher），大的结果对象占用更多容量；频率统计按预计条目数设置大小，与权重无关
+ *          4. 缓存与数据库的一致性仍然沿用 GenericCachedDao2 的读写锁：查库回填加读锁，更新数据库并清缓存加写锁
+ * @author: Su
+ * @create: 2026-10-19 14:02
+ **/
+public class BoundedCachedDao<T> {
+    private final ConcurrentHashMap<SqlPair, Node<T>> data = new ConcurrentHashMap<>();
+    // 淘汰锁 只保护三个链表、频率统计、权重
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    // 保证缓存和数据库一致性的锁 命中时不需要加
+    private final ReentrantReadWriteLock loadLock = new ReentrantReadWriteLock();
+    private final ReadBuffer<T> readBuffer = new ReadBuffer<>();
+    private final FrequencySketch sketch;
+    private final Weigher<T> weigher;
+    private final AccessOrderDeque<T> window = new AccessOrderDeque<>();
+    private final AccessOrderDeque<T> probation = new AccessOrderDeque<>();
+    private final AccessOrderDeque<T> protectedDeque = new AccessOrderDeque<>();
+    private final long maximumWeight;
+    private final long windowMaximum;
+    private final long protectedMaximum;
+    private long windowWeight;
+    private long protectedWeight;
+    private long totalWeight;
+    //不带缓存机制的dao
+    private final GenericDao genericDao;
+
+    public BoundedCachedDao(GenericDao genericDao, long maximumSize) {
+        this(genericDao, maximumSize, maximumSize, (key, value) -> 1);
+    }
+
+    /**
+     * @param expectedEntries 预计能容纳的条目数（约为 maximumWeight / 平均权重）
+     *                        频率统计按条目数而不是权重设置大小，否则权重很大时计数器过多、永远不会减半
+     */
+    public BoundedCachedDao(GenericDao genericDao, long maximumWeight, long expectedEntries, Weigher<T> weigher) {
+        this.genericDao = genericDao;
+        this.maximumWeight = maximumWeight;
+        this.weigher = weigher;
+        this.windowMaximum = Math.max(1, maximumWeight / 100);
+        this.protectedMaximum = (long) ((maximumWeight - windowMaximum) * 0.8);
+        this.sketch = new FrequencySketch(Math.max(1, expectedEntries));
+    }
+
+    public static void main(String[] args) {
+        BoundedCachedDao<Object> dao = new BoundedCachedDao<>(new GenericDao<Object>() {
+            @Override
+            public Object queryOne(Class<Object> beanClass, String sql, Object... params) {
+                return params[0];
+            }
+        }, 100);
+        // 1000 个 key，访问服从近似 zipf 分布（少数 key 很热）
+        int hits = 0;
+        int total = 100_000;
+        for (int i = 0; i < total; i++) {
+            int id = (int) (1000 * Math.pow(ThreadLocalRandom.current().nextDouble(), 3));
+            if (dao.getIfPresent("select * from user where id = ?", id) != null) {
+                hits++;
+            } else {
+                dao.queryOne(Object.class, "select * from user where id = ?", id);
+            }
+        }
+        System.out.println("容量 100 命中率: " + hits * 100.0 / total + "%, 条目数: " + dao.size());
+        // 最热的 100 个 key 占全部访问的 (100/1000)^(1/3) ≈ 46%，这是容量 100 的命中率上限
+        if (dao.size() > 100) {
+            throw new IllegalStateException("超出容量: " + dao.size());
+        }
+        if (hits * 100.0 / total < 35) {
+            throw new IllegalStateException("命中率过低 没有留住热点 key: " + hits * 100.0 / total + "%");
+        }
+        // 按权重计容量：每个条目 1KB 容量 100KB 约 100 个条目
+        BoundedCachedDao<Object> weighted = new BoundedCachedDao<>(new GenericDao<Object>() {
+            @Override
+            public Object queryOne(Class<Object> beanClass, String sql, Object... params) {
+                return params[0];
+            }
+        }, 100 * 1024, 100, (key, value) -> 1024);
+        zipf(weighted, 0, total);
+        // 热点整体换成另一批 key 频率统计要能减半 新热点才能进入主区
+        int shifted = 20_000;
+        hits = zipf(weighted, 1000, shifted);
+        System.out.println("按权重计容量 热点变化后命中率: " + hits * 100.0 / shifted + "%");
+        if (hits * 100.0 / shifted < 35) {
+            throw new IllegalStateException("热点变化后命中率过低 频率统计没有减半: " + hits * 100.0 / shifted + "%");
+        }
+    }
+
+    private static int zipf(BoundedCachedDao<Object> dao, int base, int total) {
+        int hits = 0;
+        for (int i = 0; i < total; i++) {
+            int id = base + (int) (1000 * Math.pow(ThreadLocalRandom.current().nextDouble(), 3));
+            if (dao.getIfPresent("select * from user where id = ?", id) != null) {
+                hits++;
+            } else {
+                dao.queryOne(Object.class, "select * from user where id = ?", id);
+            }
+        }
+        return hits;
+    }
+
+    /**
+     * 只查缓存 不查数据库
+     */
+    public T getIfPresent(String sql, Object... params) {
+        Node<T> node = data.get(SqlProbe.of(sql, params));
+        if (node == null) {
+            return null;
+        }
+        afterRead(node);
+        return node.value;
+    }
+
+    public T queryOne(Class<T> beanClass, String sql, Object... params) {
+        // 命中时用线程私有的 SqlProbe 查找 不创建 key
+        Node<T> node = data.get(SqlProbe.of(sql, params));
+        if (node != null) {
+            afterRead(node);
+            return node.value;
+        }
+        SqlPair key = new SqlPair(sql, params);
+        loadLock.readLock().lock();
+        try {
+            node = data.get(key);
+            if (node != null) {
+                afterRead(node);
+                return node.value;
+            }
+            T value = (T) genericDao.queryOne(beanClass, sql, params);
+            if (value == null) {
+                return null;
+            }
+            Node<T> created = new Node<>(key, value, weigher.weigh(key, value));
+            Node<T> prior = data.putIfAbsent(key, created);
+            if (prior != null) {
+                afterRead(prior);
+                return prior.value;
+            }
+            afterWrite(created);
+            return value;
+        } finally {
+            loadLock.readLock().unlock();
+        }
+    }
+
+    public int update(String sql, Object... params) {
+        loadLock.writeLock().lock();
+        try {
+            int rows = genericDao.update(sql, params);
+            invalidateAll();
+            return rows;
+        } finally {
+            loadLock.writeLock().unlock();
+        }
+    }
+
+    public void invalidateAll() {
+        evictionLock.lock();
+        try {
+            drainReadBuffer();
+            for (AccessOrderDeque<T> deque : new AccessOrderDeque[]{window, probation, protectedDeque}) {
+                Node<T> node;
+                while ((node = deque.pollFirst()) != null) {
+                    // 读缓冲区中可能还有它的访问记录 标记为已淘汰
+                    node.queue = Node.DEAD;
+                    data.remove(node.key, node);
+                }
+            }
+            windowWeight = 0;
+            protectedWeight = 0;
+            totalWeight = 0;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    public long size() {
+        return data.mappingCount();
+    }
+
+    public long weightedSize() {
+        evictionLock.lock();
+        try {
+            return totalWeight;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    // 读之后只记录 缓冲区积累到一定数量才尝试回放 拿不到锁就算了
+    private void afterRead(Node<T> node) {
+        if (readBuffer.offer(node) && evictionLock.tryLock()) {
+            try {
+                drainReadBuffer();
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+    }
+
+    // 写操作本来就要查库 直接加锁维护链表并淘汰
+    private void afterWrite(Node<T> node) {
+        evictionLock.lock();
+        try {
+            drainReadBuffer();
+            onAdd(node);
+            evict();
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private void drainReadBuffer() {
+        readBuffer.drainTo(this::onAccess);
+    }
+
+    private void onAdd(Node<T> node) {
+        sketch.increment(node.key.hashCode());
+        node.queue = Node.WINDOW;
+        window.addLast(node);
+        windowWeight += node.weight;
+        totalWeight += node.weight;
+    }
+
+    private void onAccess(Node<T> node) {
+        sketch.increment(node.key.hashCode());
+        switch (node.queue) {
+            case Node.WINDOW:
+                window.moveToBack(node);
+                break;
+            case Node.PROBATION:
+                // 试用区再次被访问 晋升到保护区
+                probation.remove(node);
+                node.queue = Node.PROTECTED;
+                protectedDeque.addLast(node);
+                protectedWeight += node.weight;
+                // 保护区超了 将最久未访问的降级到试用区
+                while (protectedWeight > protectedMaximum) {
+                    Node<T> demoted = protectedDeque.pollFirst();
+                    if (demoted == null) {
+                        break;
+                    }
+                    protectedWeight -= demoted.weight;
+                    demoted.queue = Node.PROBATION;
+                    probation.addLast(demoted);
+                }
+                break;
+            case Node.PROTECTED:
+                protectedDeque.moveToBack(node);
+                break;
+            default:
+                // 已被淘汰的节点 忽略
+        }
+    }
+
+    private void evict() {
+        Node<T> candidate = evictFromWindow();
+        evictFromMain(candidate);
+    }
+
+    // 窗口区超出的部分移入试用区队尾 作为候选者 返回第一个候选者
+    private Node<T> evictFromWindow() {
+        Node<T> first = null;
+        while (windowWeight > windowMaximum) {
+            Node<T> node = window.pollFirst();
+            if (node == null) {
+                break;
+            }
+            windowWeight -= node.weight;
+            node.queue = Node.PROBATION;
+            probation.addLast(node);
+            if (first == null) {
+                first = node;
+            }
+        }
+        return first;
+    }
+
+    // 总权重超出时 候选者和淘汰者（试用区队头）比较频率 淘汰频率低的
+    private void evictFromMain(Node<T> candidate) {
+        while (totalWeight > maximumWeight) {
+            Node<T> victim = probation.peekFirst();
+            if (victim == null) {
+                victim = protectedDeque.peekFirst();
+            }
+            if (victim == null) {
+                victim = window.peekFirst();
+            }
+            if (victim == null) {
+                return;
+            }
+            if (candidate == null || candidate.queue != Node.PROBATION) {
+                evictEntry(victim);
+            } else if (candidate == victim) {
+                // 试用区只剩候选者了 直接淘汰最老的候选者
+                candidate = candidate.next;
+                evictEntry(victim);
+            } else if (candidate.weight > maximumWeight || !admit(candidate, victim)) {
+                Node<T> next = candidate.next;
+                evictEntry(candidate);
+                candidate = next;
+            } else {
+                evictEntry(victim);
+            }
+        }
+    }
+
+    private boolean admit(Node<T> candidate, Node<T> victim) {
+        int candidateFreq = sketch.frequency(candidate.key.hashCode());
+        int victimFreq = sketch.frequency(victim.key.hashCode());
+        if (candidateFreq > victimFreq) {
+            return true;
+        }
+        // 防止攻击者用低频 key 把热点 key 的频率"压"住 频率较高时给候选者一个很小的随机准入机会
+        return candidateFreq > 5 && ThreadLocalRandom.current().nextInt(128) == 0;
+    }
+
+    private void evictEntry(Node<T> node) {
+        switch (node.queue) {
+            case Node.WINDOW:
+                window.remove(node);
+                windowWeight -= node.weight;
+                break;
+            case Node.PROBATION:
+                probation.remove(node);
+                break;
+            case Node.PROTECTED:
+                protectedDeque.remove(node);
+                protectedWeight -= node.weight;
+                break;
+            default:
+                return;
+        }
+        node.queue = Node.DEAD;
+        totalWeight -= node.weight;
+        data.remove(node.key, node);
+    }
+
+    /**
+     * 计算条目权重
+     */
+    @FunctionalInterface
+    interface Weigher<T> {
+        int weigh(SqlPair key, T value);
+    }
+
+    /**
+     * 缓存节点 同时是双向链表的节点
+     */
+    static final class Node<T> {
+        static final int DEAD = 0;
+        static final int WINDOW = 1;
+        static final int PROBATION = 2;
+        static final int PROTECTED = 3;
+
+        final SqlPair key;
+        final T value;
+        final int weight;
+        // 以下字段只在淘汰锁内访问
+        int queue;
+        Node<T> prev;
+        Node<T> next;
+
+        Node(SqlPair key, T value, int weight) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * 侵入式双向链表 头部是最久未访问的
+     */
+    static final class AccessOrderDeque<T> {
+        private Node<T> first;
+        private Node<T> last;
+
+        Node<T> peekFirst() {
+            return first;
+        }
+
+        void addLast(Node<T> node) {
+            node.prev = last;
+            node.next = null;
+            if (last == null) {
+                first = node;
+            } else {
+                last.next = node;
+            }
+            last = node;
+        }
+
+        Node<T> pollFirst() {
+            Node<T> node = first;
+            if (node != null) {
+                remove(node);
+            }
+            return node;
+        }
+
+        void remove(Node<T> node) {
+            if (node.prev == null) {
+                first = node.next;
+            } else {
+                node.prev.next = node.next;
+            }
+            if (node.next == null) {
+                last = node.prev;
+            } else {
+                node.next.prev = node.prev;
+            }
+            node.prev = null;
+            node.next = null;
+        }
+
+        void moveToBack(Node<T> node) {
+            if (node != last) {
+                remove(node);
+                addLast(node);
+            }
+        }
+    }
+
+    /**
+     * 分段的有损环形缓冲区 记录读操作
+     *     按线程选择段，减少多个读线程 cas 同一个计数器
+     *     满了直接丢弃，读线程永远不会阻塞
+     */
+    static final class ReadBuffer<T> {
+        private static final int SIZE = 16;
+        private static final int MASK = SIZE - 1;
+        private final AtomicReferenceArray<Node<T>>[] buffers;
+        private final AtomicLong[] writeCounters;
+        // 只在淘汰锁内修改 读线程只做 volatile 读
+        private final AtomicLongArray readCounters;
+        private final int stripeMask;
+
+        ReadBuffer() {
+            int stripes = 1;
+            while (stripes < Runtime.getRuntime().availableProcessors()) {
+                stripes <<= 1;
+            }
+            buffers = new AtomicReferenceArray[stripes];
+            writeCounters = new AtomicLong[stripes];
+            readCounters = new AtomicLongArray(stripes);
+            for (int i = 0; i < stripes; i++) {
+                buffers[i] = new AtomicReferenceArray<>(SIZE);
+                writeCounters[i] = new AtomicLong();
+            }
+            stripeMask = stripes - 1;
+        }
+
+        /**
+         * @return 是否应该回放了
+         */
+        boolean offer(Node<T> node) {
+            long h = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+            int stripe = (int) (h >>> 32) & stripeMask;
+            AtomicLong writeCounter = writeCounters[stripe];
+            long head = readCounters.get(stripe);
+            long tail = writeCounter.get();
+            if (tail - head >= SIZE) {
+                return true;
+            }
+            if (writeCounter.compareAndSet(tail, tail + 1)) {
+                buffers[stripe].lazySet((int) (tail & MASK), node);
+                return tail + 1 - head >= SIZE / 2;
+            }
+            return false;
+        }
+
+        void drainTo(Consumer<Node<T>> consumer) {
+            for (int stripe = 0; stripe < buffers.length; stripe++) {
+                AtomicReferenceArray<Node<T>> buffer = buffers[stripe];
+                long head = readCounters.get(stripe);
+                long tail = writeCounters[stripe].get();
+                for (; head < tail; head++) {
+                    int index = (int) (head & MASK);
+                    Node<T> node = buffer.get(index);
+                    // 写线程已经 cas 了计数器但还没放入节点 下次再回放
+                    if (node == null) {
+                        break;
+                    }
+                    buffer.lazySet(index, null);
+                    consumer.accept(node);
+                }
+                readCounters.lazySet(stripe, head);
+            }
+        }
+    }
+}
@@ -0,0 +1,298 @@
+package com.concurrent.tools.principle;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @program: su-concurrent
+ * @description: 缓存统计
+ *      问题：
+ *          不知道缓存到底有没有用：命中率多少、查库多慢、update 清掉了多少条目、线程在锁上等了多久，调容量和 TTL 只能靠猜
+ *      实现：
+ *          1. 所有计数器都是 LongAdder（内部按线程分散到多个 Cell，即条带化），每条路径上记录一次，不会成为新的竞争点
+ *          2. 查库耗时用对数直方图记录：第 i 个桶统计 [2^(i-1), 2^i) 微秒的次数，每个桶一个 LongAdder，记录 O(1)
+ *          3. snapshot() 返回某一时刻的不可变快照，可以计算命中率、平均耗时、分位数，两次快照相减得到一段时间内的增量
+ *          4. register 把统计注册为平台 MBeanServer 上的 MXBean
+ *      注意：
+ *          快照不是原子的（各个 LongAdder 分别求和），统计期间仍在变化的计数之间可能有细微的不一致
+ * @author: Su
+ * @create: 2026-10-19 23:30
+ **/
+public class CacheStats implements CacheStatsMXBean {
+    private static final int BUCKETS = 40;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder negativeHits = new LongAdder();
+    private final LongAdder loadSuccesses = new LongAdder();
+    private final LongAdder loadFailures = new LongAdder();
+    private final LongAdder totalLoadNanos = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder lockWaitNanos = new LongAdder();
+    private final LongAdder[] loadLatency = new LongAdder[BUCKETS];
+
+    public CacheStats() {
+        for (int i = 0; i < BUCKETS; i++) {
+            loadLatency[i] = new LongAdder();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        LatencyDatabase db = new LatencyDatabase(8, 500, 0.8, 0.01, 20_000, 0, 1000);
+        GenericCachedDao2<Object> dao = new GenericCachedDao2<>(new LatencyGenericDao<>(db));
+        ObjectName name = dao.stats().register("user");
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int j = 0; j < 2_000; j++) {
+                    dao.queryOne(Object.class, "select * from user where id = ?", random.nextInt(1_000));
+                    if (j % 500 == 0) {
+                        dao.update("update user set name = ? where id = ?", "su", j);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        Snapshot snapshot = dao.stats().snapshot();
+        System.out.println(snapshot);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        Object hitRate = server.getAttribute(name, "HitRate");
+        System.out.println("JMX HitRate: " + hitRate);
+        server.unregisterMBean(name);
+        // 每次查询要么命中要么未命中 每次未命中对应一次查库
+        long lookups = (long) threads.length * 2_000;
+        if (snapshot.hitCount + snapshot.missCount + snapshot.negativeHitCount != lookups) {
+            throw new IllegalStateException("命中与未命中之和不等于查询次数: " + lookups);
+        }
+        if (snapshot.loadSuccessCount + snapshot.loadFailureCount != db.queries.sum()) {
+            throw new IllegalStateException("加载次数与查库次数不一致: " + db.queries.sum());
+        }
+        if (!Double.valueOf(snapshot.hitRate()).equals(hitRate) || snapshot.hitRate() <= 0 || snapshot.hitRate() >= 1) {
+            throw new IllegalStateException("命中率不对: " + hitRate);
+        }
+    }
+
+    void recordHit() {
+        hits.increment();
+    }
+
+    void recordNegativeHit() {
+        negativeHits.increment();
+    }
+
+    void recordMiss() {
+        misses.increment();
+    }
+
+    void recordLoad(long nanos, boolean success) {
+        if (success) {
+            loadSuccesses.increment();
+        } else {
+            loadFailures.increment();
+        }
+        totalLoadNanos.add(nanos);
+        loadLatency[bucket(TimeUnit.NANOSECONDS.toMicros(nanos))].increment();
+    }
+
+    void recordEvictions(long count) {
+        evictions.add(count);
+    }
+
+    void recordLockWait(long nanos) {
+        lockWaitNanos.add(nanos);
+    }
+
+    // 0 微秒在第 0 个桶 [2^(i-1), 2^i) 在第 i 个桶
+    private static int bucket(long micros) {
+        return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+    }
+
+    public Snapshot snapshot() {
+        long[] histogram = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            histogram[i] = loadLatency[i].sum();
+        }
+        return new Snapshot(hits.sum(), misses.sum(), negativeHits.sum(), loadSuccesses.sum(), loadFailures.sum(),
+                totalLoadNanos.sum(), evictions.sum(), lockWaitNanos.sum(), histogram);
+    }
+
+    /**
+     * 注册到平台 MBeanServer
+     */
+    public ObjectName register(String cacheName) {
+        try {
+            ObjectName name = new ObjectName("com.concurrent.tools:type=CacheStats,name=" + ObjectName.quote(cacheName));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            return name;
+        } catch (JMException e) {
+            throw new IllegalStateException("cannot register cache stats " + cacheName, e);
+        }
+    }
+
+    @Override
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    @Override
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    @Override
+    public long getNegativeHitCount() {
+        return negativeHits.sum();
+    }
+
+    @Override
+    public double getHitRate() {
+        return snapshot().hitRate();
+    }
+
+    @Override
+    public long getLoadSuccessCount() {
+        return loadSuccesses.sum();
+    }
+
+    @Override
+    public long getLoadFailureCount() {
+        return loadFailures.sum();
+    }
+
+    @Override
+    public double getAverageLoadMicros() {
+        return snapshot().averageLoadMicros();
+    }
+
+    @Override
+    public long getLoadLatencyP50Micros() {
+        return snapshot().loadLatencyPercentile(0.5);
+    }
+
+    @Override
+    public long getLoadLatencyP99Micros() {
+        return snapshot().loadLatencyPercentile(0.99);
+    }
+
+    @Override
+    public long[] getLoadLatencyHistogram() {
+        return snapshot().histogram();
+    }
+
+    @Override
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    @Override
+    public long getLockWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(lockWaitNanos.sum());
+    }
+
+    /**
+     * 某一时刻的统计快照 不可变
+     */
+    public static final class Snapshot {
+        public final long hitCount;
+        public final long missCount;
+        public final long negativeHitCount;
+        public final long loadSuccessCount;
+        public final long loadFailureCount;
+        public final long totalLoadNanos;
+        public final long evictionCount;
+        public final long lockWaitNanos;
+        private final long[] histogram;
+
+        Snapshot(long hitCount, long missCount, long negativeHitCount, long loadSuccessCount, long loadFailureCount,
+                 long totalLoadNanos, long evictionCount, long lockWaitNanos, long[] histogram) {
+            this.hitCount = hitCount;
+            this.missCount = missCount;
+            this.negativeHitCount = negativeHitCount;
+            this.loadSuccessCount = loadSuccessCount;
+            this.loadFailureCount = loadFailureCount;
+            this.totalLoadNanos = totalLoadNanos;
+            this.evictionCount = evictionCount;
+            this.lockWaitNanos = lockWaitNanos;
+            this.histogram = histogram;
+        }
+
+        // 负缓存命中也算命中（省掉了一次查库）
+        public double hitRate() {
+            long requests = hitCount + negativeHitCount + missCount;
+            return requests == 0 ? 1.0 : (double) (hitCount + negativeHitCount) / requests;
+        }
+
+        public double averageLoadMicros() {
+            long loads = loadSuccessCount + loadFailureCount;
+            return loads == 0 ? 0 : totalLoadNanos / 1000.0 / loads;
+        }
+
+        /**
+         * 加载耗时的分位数 返回所在桶的上界（微秒）
+         */
+        public long loadLatencyPercentile(double percentile) {
+            long total = 0;
+            for (long count : histogram) {
+                total += count;
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long target = (long) Math.ceil(total * percentile);
+            long seen = 0;
+            for (int i = 0; i < histogram.length; i++) {
+                seen += histogram[i];
+                if (seen >= target) {
+                    return 1L << i;
+                }
+            }
+            return 1L << (histogram.length - 1);
+        }
+
+        public long[] histogram() {
+            return histogram.clone();
+        }
+
+        /**
+         * 两次快照之间的增量
+         */
+        public Snapshot minus(Snapshot earlier) {
+            long[] diff = new long[histogram.length];
+            for (int i = 0; i < diff.length; i++) {
+                diff[i] = histogram[i] - earlier.histogram[i];
+            }
+            return new Snapshot(hitCount - earlier.hitCount, missCount - earlier.missCount,
+                    negativeHitCount - earlier.negativeHitCount, loadSuccessCount - earlier.loadSuccessCount,
+                    loadFailureCount - earlier.loadFailureCount, totalLoadNanos - earlier.totalLoadNanos,
+                    evictionCount - earlier.evictionCount, lockWaitNanos - earlier.lockWaitNanos, diff);
+        }
+
+        @Override
+        public String toString() {
+            return "CacheStats{" +
+                    "hitCount=" + hitCount +
+                    ", missCount=" + missCount +
+                    ", negativeHitCount=" + negativeHitCount +
+                    ", hitRate=" + String.format("%.3f", hitRate()) +
+                    ", loadSuccessCount=" + loadSuccessCount +
+                    ", loadFailureCount=" + loadFailureCount +
+                    ", averageLoadMicros=" + String.format("%.1f", averageLoadMicros()) +
+                    ", p50Micros=" + loadLatencyPercentile(0.5) +
+                    ", p99Micros=" + loadLatencyPercentile(0.99) +
+                    ", evictionCount=" + evictionCount +
+                    ", lockWaitMillis=" + TimeUnit.NANOSECONDS.toMillis(lockWaitNanos) +
+                    ", histogram=" + Arrays.toString(Arrays.copyOf(histogram, 24)) +
+                    '}';
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.concurrent.tools.principle;
+
+/**
+ * @program: su-concurrent
+ * @description: 缓存统计的 JMX 接口 用 jconsole / jvisualvm 可以直接查看
+ *      MXBean 接口必须是 public 的，所以单独放在一个文件中
+ * @author: Su
+ * @create: 2026-10-19 23:30
+ **/
+public interface CacheStatsMXBean {
+    long getHitCount();
+
+    long getMissCount();
+
+    long getNegativeHitCount();
+
+    double getHitRate();
+
+    long getLoadSuccessCount();
+
+    long getLoadFailureCount();
+
+    double getAverageLoadMicros();
+
+    long getLoadLatencyP50Micros();
+
+    long getLoadLatencyP99Micros();
+
+    // 第 i 个桶是耗时在 [2^(i-1), 2^i) 微秒的加载次数
+    long[] getLoadLatencyHistogram();
+
+    long getEvictionCount();
+
+    long getLockWaitMillis();
+}
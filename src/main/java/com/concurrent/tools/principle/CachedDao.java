@@ -1,8 +1,11 @@
 package com.concurrent.tools.principle;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
@@ -27,9 +30,25 @@ class GenericDao<T> {
     public T queryOne(Class<T> beanClass, String sql, Object... params) {
             return null;
     }
+    // 同一条 sql 的多组参数一起查询（如 where id in (...)），默认实现逐条查询
+    public List<T> queryMany(Class<T> beanClass, String sql, List<Object[]> paramsList) {
+        List<T> result = new ArrayList<>(paramsList.size());
+        for (Object[] params : paramsList) {
+            result.add(queryOne(beanClass, sql, params));
+        }
+        return result;
+    }
     public int update(String sql, Object... params) {
         return 1;
     }
+    // 同一条 sql 的多组参数一起更新（jdbc 的 addBatch / executeBatch），默认实现逐条更新
+    public int updateMany(String sql, List<Object[]> paramsList) {
+        int rows = 0;
+        for (Object[] params : paramsList) {
+            rows += update(sql, params);
+        }
+        return rows;
+    }
 }
 
 /**
@@ -128,23 +147,107 @@ class GenericCachedDao1<T> {
 
 /**
  * 使用锁来解决多线程问题  使用读写锁来保证数据正确性和性能（比加普通锁的性能高）
+ * 负缓存：
+ *     查询结果为 null 时原来当作未命中，查询不存在的 id 每次都会打到数据库上，也很容易被人用来攻击数据库
+ *     开启负缓存后，null 结果用一个带过期时间的哨兵对象 Absent 放入缓存，过期时间单独设置（一般比正常数据短）
+ *     还可以再加一个布隆过滤器记录存在的 key，过滤器说不存在的直接返回 null，连负缓存都不用占
+ *     注意：开启布隆过滤器后，新插入数据的 key 需要调用 markExists 登记，否则会一直被过滤器挡住
+ * 近缓存：
+ *     可选的线程本地 L0（NearCache），热点 key 命中时不加读锁，update 时通过 epoch 使其失效
+ * 统计：
+ *     命中、未命中、查库耗时、update 清掉的条目数、等锁时间都记录在 CacheStats 中，可以通过 stats() 或 JMX 查看
+ *     加锁先 tryLock，取不到才计时等待，没有竞争时统计不增加开销
  * @param <T>
  */
 class GenericCachedDao2<T> {
-    HashMap<SqlPair, T> map = new HashMap<>();
+    // 值可能是 T 也可能是哨兵 Absent
+    HashMap<SqlPair, Object> map = new HashMap<>();
     ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
     //不带缓存机制的dao
-    GenericDao genericDao = new GenericDao();
+    GenericDao genericDao;
+    // 负缓存的过期时间 0 表示不开启
+    private final long negativeTtlNanos;
+    // 存在的 key 的布隆过滤器 null 表示不开启
+    private volatile ConcurrentBloomFilter existenceFilter;
+    // 线程本地的热点 key 缓存 null 表示不开启
+    private volatile NearCache nearCache;
+    private final CacheStats stats = new CacheStats();
+
+    public GenericCachedDao2() {
+        this(new GenericDao());
+    }
+
+    // 可以传入 LatencyGenericDao 来压测缓存的效果
+    public GenericCachedDao2(GenericDao genericDao) {
+        this(genericDao, 0, TimeUnit.NANOSECONDS);
+    }
+
+    public GenericCachedDao2(GenericDao genericDao, long negativeTtl, TimeUnit unit) {
+        this.genericDao = genericDao;
+        this.negativeTtlNanos = unit.toNanos(negativeTtl);
+    }
+
+    public void setExistenceFilter(ConcurrentBloomFilter existenceFilter) {
+        this.existenceFilter = existenceFilter;
+    }
+
+    public void setNearCache(NearCache nearCache) {
+        this.nearCache = nearCache;
+    }
+
+    public CacheStats stats() {
+        return stats;
+    }
+
+    // 新插入数据后登记它的 key
+    public void markExists(String sql, Object... params) {
+        ConcurrentBloomFilter filter = existenceFilter;
+        if (filter != null) {
+            filter.put(SqlProbe.of(sql, params).hashCode());
+        }
+    }
+
     public T queryOne(Class<T> beanClass, String sql, Object... params) {
-        SqlPair key = new SqlPair(sql, params);
+        // 用线程私有的 SqlProbe 查找 未命中要放入缓存时才创建 SqlPair
+        SqlProbe probe = SqlProbe.of(sql, params);
+        NearCache near = nearCache;
+        long epoch = 0;
+        if (near != null) {
+            Object cached = near.get(probe);
+            if (cached != null) {
+                stats.recordHit();
+                return (T) cached;
+            }
+            // 必须在读 map 之前取 epoch
+            epoch = near.epoch();
+        }
+        ConcurrentBloomFilter filter = existenceFilter;
+        if (filter != null && !filter.mightContain(probe.hashCode())) {
+            // 一定不存在
+            stats.recordNegativeHit();
+            return null;
+        }
         /**
          * 加读锁, 防止其它线程对缓存更改
          */
-        lock.readLock().lock();
+        if (!lock.readLock().tryLock()) {
+            long start = System.nanoTime();
+            lock.readLock().lock();
+            stats.recordLockWait(System.nanoTime() - start);
+        }
         try {
-            T value = map.get(key);
-            if (value != null) {
-                return value;
+            Object value = map.get(probe);
+            if (value instanceof Absent) {
+                if (!((Absent) value).isExpired()) {
+                    stats.recordNegativeHit();
+                    return null;
+                }
+            } else if (value != null) {
+                stats.recordHit();
+                if (near != null) {
+                    near.recordHit(probe, value, epoch);
+                }
+                return (T) value;
             }
         } finally {
             lock.readLock().unlock();
@@ -155,16 +258,43 @@ class GenericCachedDao2<T> {
          * 但是后面的线程拿到锁后 依然又进行了查询 并放入缓存
          * 所以需要通过二次检测来解决该问题
          */
-        lock.writeLock().lock();
+        lockWrite();
         try {
             /**
              * 为防止重复查询数据库, 再次验证
              */
-            T value = map.get(key);
-            if (value == null) {
-                // 如果没有, 查询数据库
-                value = (T)genericDao.queryOne(beanClass, sql, params);
+            Object cached = map.get(probe);
+            if (cached instanceof Absent) {
+                if (!((Absent) cached).isExpired()) {
+                    stats.recordNegativeHit();
+                    return null;
+                }
+            } else if (cached != null) {
+                stats.recordHit();
+                return (T) cached;
+            }
+            stats.recordMiss();
+            // 查库时可能再次用到本线程的 SqlProbe 先生成不可变的 key
+            SqlPair key = probe.toKey();
+            // 如果没有, 查询数据库
+            long start = System.nanoTime();
+            T value;
+            try {
+                value = (T) genericDao.queryOne(beanClass, sql, params);
+            } catch (RuntimeException e) {
+                stats.recordLoad(System.nanoTime() - start, false);
+                throw e;
+            }
+            stats.recordLoad(System.nanoTime() - start, true);
+            if (value != null) {
                 map.put(key, value);
+                if (filter != null) {
+                    filter.put(key.hashCode());
+                }
+            } else if (negativeTtlNanos > 0) {
+                map.put(key, new Absent(System.nanoTime() + negativeTtlNanos));
+            } else {
+                map.remove(key);
             }
             return value;
         } finally {
@@ -173,45 +303,42 @@ class GenericCachedDao2<T> {
     }
 
     public int update(String sql, Object... params) {
-        SqlPair key = new SqlPair(sql, params);
         /**
          *   加写锁, 防止其它线程对缓存读取和更改
          *   加锁后 清缓存和更新数据库的顺序就无所谓了
          */
-        lock.writeLock().lock();
+        lockWrite();
         try {
             int rows = genericDao.update(sql, params);
+            stats.recordEvictions(map.size());
             map.clear();
+            NearCache near = nearCache;
+            if (near != null) {
+                near.invalidateAll();
+            }
             return rows;
         } finally {
             lock.writeLock().unlock();
         }
     }
-    // 作为 key 保证其是不可变的
-    class SqlPair {
-        private String sql;
-        private Object[] params;
-        public SqlPair(String sql, Object[] params) {
-            this.sql = sql;
-            this.params = params;
+    private void lockWrite() {
+        if (!lock.writeLock().tryLock()) {
+            long start = System.nanoTime();
+            lock.writeLock().lock();
+            stats.recordLockWait(System.nanoTime() - start);
         }
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) {
-                return true;
-            }
-            if (o == null || getClass() != o.getClass()) {
-                return false;
-            }
-            SqlPair sqlPair = (SqlPair) o;
-            return sql.equals(sqlPair.sql) &&
-                    Arrays.equals(params, sqlPair.params);
+    }
+
+    // 负缓存的哨兵 表示数据库中没有该数据
+    static final class Absent {
+        private final long expireAt;
+
+        Absent(long expireAt) {
+            this.expireAt = expireAt;
         }
-        @Override
-        public int hashCode() {
-            int result = Objects.hash(sql);
-            result = 31 * result + Arrays.hashCode(params);
-            return result;
+
+        boolean isExpired() {
+            return System.nanoTime() - expireAt >= 0;
         }
     }
 }
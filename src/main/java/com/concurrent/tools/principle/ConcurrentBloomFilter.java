@@ -0,0 +1,104 @@
+package com.concurrent.tools.principle;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * @program: su-concurrent
+ * @description: 并发布隆过滤器
+ *      用途：
+ *          记录"存在的 key"，它说不存在的 key 一定不存在，可以直接返回而不用查库（防止用大量不存在的 id 把数据库打垮）
+ *          它说存在的 key 可能不存在（误判率由容量和位数组大小决定），这部分再交给负缓存和数据库
+ *      实现：
+ *          位数组用 AtomicLongArray，置位时 cas 重试（与 AccountCas 的写法相同），查询只有 volatile 读，全程无锁
+ *          k 个哈希位置用双重哈希 h1 + i * h2 计算
+ *      注意：
+ *          布隆过滤器不支持删除，数据被删除后只会多一次查库，不会出错
+ * @author: Su
+ * @create: 2026-10-19 18:20
+ **/
+class ConcurrentBloomFilter {
+    private final AtomicLongArray bits;
+    private final long bitSize;
+    private final int numHashes;
+
+    /**
+     * @param expectedInsertions 预计放入的 key 数
+     * @param fpp 期望的误判率 例如 0.01
+     */
+    public ConcurrentBloomFilter(long expectedInsertions, double fpp) {
+        long n = Math.max(1, expectedInsertions);
+        long m = (long) (-n * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        int words = (int) Math.max(1, (m + 63) >>> 6);
+        this.bits = new AtomicLongArray(words);
+        this.bitSize = (long) words << 6;
+        this.numHashes = Math.max(1, (int) Math.round((double) m / n * Math.log(2)));
+    }
+
+    public static void main(String[] args) {
+        ConcurrentBloomFilter filter = new ConcurrentBloomFilter(10_000, 0.01);
+        for (int i = 0; i < 10_000; i++) {
+            filter.put(Integer.hashCode(i));
+        }
+        int falsePositives = 0;
+        for (int i = 10_000; i < 20_000; i++) {
+            if (filter.mightContain(Integer.hashCode(i))) {
+                falsePositives++;
+            }
+        }
+        System.out.println("误判率: " + falsePositives / 100.0 + "%");
+        // 放入过的一定返回 true；误判率按 1% 设计 留一倍余量
+        for (int i = 0; i < 10_000; i++) {
+            if (!filter.mightContain(Integer.hashCode(i))) {
+                throw new IllegalStateException("放入过的 key 被判为不存在: " + i);
+            }
+        }
+        if (falsePositives > 200) {
+            throw new IllegalStateException("误判率过高: " + falsePositives / 100.0 + "%");
+        }
+    }
+
+    public void put(int hash) {
+        long h = mix(hash);
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32);
+        for (int i = 1; i <= numHashes; i++) {
+            long index = bitIndex(h1 + i * h2);
+            int word = (int) (index >>> 6);
+            long mask = 1L << index;
+            while (true) {
+                long prev = bits.get(word);
+                if ((prev & mask) != 0 || bits.compareAndSet(word, prev, prev | mask)) {
+                    break;
+                }
+            }
+        }
+    }
+
+    public boolean mightContain(int hash) {
+        long h = mix(hash);
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32);
+        for (int i = 1; i <= numHashes; i++) {
+            long index = bitIndex(h1 + i * h2);
+            if ((bits.get((int) (index >>> 6)) & (1L << index)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private long bitIndex(int combined) {
+        return (combined & Integer.MAX_VALUE) % bitSize;
+    }
+
+    // 把 32 位的 hashCode 打散成 64 位 分别作为两个哈希值
+    private static long mix(int hash) {
+        long h = hash * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,449 @@
+package com.concurrent.tools.principle;
+
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * @program: su-concurrent
+ * @description: 带过期时间的缓存
+ *      CachedDao 的问题：没有考虑缓存过期，旧数据只有等 update 清空全部缓存才会消失
+ *      支持两种过期：
+ *          1. TTL（time to live）：写入后经过指定时间过期，每个条目可以单独指定
+ *          2. TTI（time to idle）：超过指定时间没有被访问则过期
+ *      实现：
+ *          1. 读线程只比较条目自身的时间戳判断是否过期，O(1)、不加锁；过期了就当作未命中
+ *          2. 真正从 map 中删除过期条目的是一个后台维护线程，它用分层时间轮（HierarchicalTimingWheel）管理所有条目的到期时间
+ *             不需要定时扫描整个 map
+ *          3. 时间轮只能由维护线程访问，写线程把新条目放入无锁队列，由维护线程取出后放入时间轮
+ *          4. TTI 条目每次读都只更新访问时间，不去挪动时间轮；到点后维护线程再检查一次，没有真正空闲就按新的访问时间重新放入
+ *          5. 缓存与数据库的一致性仍然沿用 GenericCachedDao2 的读写锁
+ *      提前刷新（refresh-ahead）：
+ *          热点 key 一到期，所有请求同时未命中去查库，p99 上就会周期性地出现尖刺
+ *          1. 条目过了 TTL 的一定比例（refreshAheadFraction）后，下一次读仍然返回当前值，同时向刷新线程池提交一次异步重新加载
+ *             每个条目用 cas 标记"刷新中"，保证只提交一次；刷新线程池有界，队列满了就放弃这次刷新，下次读再试
+ *          2. stale-while-revalidate：到期后的一段时间内（staleWhileRevalidate）仍然返回旧值并触发刷新，
+ *             刷新失败（比如数据库抖动）时读线程也不会被阻塞，超过这段时间才真正当作未命中
+ *          3. 刷新得到的新条目用 map.replace(key, 旧条目, 新条目) 替换，期间被 update 清掉的条目不会被"刷新"回来
+ *      按代失效：
+ *          update 原来要遍历删除所有条目，缓存越大持有写锁的时间越长，一次性释放大量对象还会引起 GC 尖刺
+ *          现在每个条目记录放入时的代数（generation），update 只把代数加一，O(1)
+ *          读到旧代的条目当作未命中；旧代条目由维护线程在后台分批删除，size() 在删除完成之前会包含它们
+ * @author: Su
+ * @create: 2026-10-19 15:40
+ **/
+public class ExpiringCachedDao<T> implements AutoCloseable {
+    private final ConcurrentHashMap<SqlPair, Entry<T>> map = new ConcurrentHashMap<>();
+    private final ReentrantReadWriteLock loadLock = new ReentrantReadWriteLock();
+    // 写线程 -> 维护线程 需要放入或移出时间轮的条目
+    private final ConcurrentLinkedQueue<Entry<T>> pending = new ConcurrentLinkedQueue<>();
+    private final HierarchicalTimingWheel<Entry<T>> wheel;
+    private final long tickNanos;
+    private final long defaultTtlNanos;
+    private final long ttiNanos;
+    private final double refreshAheadFraction;
+    private final long staleNanos;
+    // 刷新线程池 没有开启提前刷新时为 null
+    private final ThreadPoolExecutor refreshPool;
+    private final Thread maintenance;
+    private volatile boolean running = true;
+    // 当前代数 update 时加一
+    private final AtomicLong generation = new AtomicLong();
+    // 维护线程已清理完的代数 及未完成的清理进度（只由维护线程访问）
+    private long sweptGeneration;
+    private Iterator<Entry<T>> sweep;
+    private long sweepingGeneration;
+    //不带缓存机制的dao
+    private final GenericDao genericDao;
+
+    /**
+     * @param ttl 默认的写入后过期时间 0 表示不过期
+     * @param tti 空闲过期时间 0 表示不启用
+     */
+    public ExpiringCachedDao(GenericDao genericDao, long ttl, long tti, TimeUnit unit) {
+        this(genericDao, ttl, tti, unit, 10, TimeUnit.MILLISECONDS);
+    }
+
+    public ExpiringCachedDao(GenericDao genericDao, long ttl, long tti, TimeUnit unit, long tick, TimeUnit tickUnit) {
+        this(genericDao, ttl, tti, unit, 0, 0, 0, tick, tickUnit);
+    }
+
+    /**
+     * @param refreshAheadFraction 过了 TTL 的多少比例后提前刷新 例如 0.8
+     * @param staleWhileRevalidate 到期后仍可返回旧值的时间
+     * @param refreshThreads 刷新线程数
+     */
+    public ExpiringCachedDao(GenericDao genericDao, long ttl, long tti, TimeUnit unit,
+                             double refreshAheadFraction, long staleWhileRevalidate, int refreshThreads) {
+        this(genericDao, ttl, tti, unit, refreshAheadFraction, staleWhileRevalidate, refreshThreads,
+                10, TimeUnit.MILLISECONDS);
+    }
+
+    private ExpiringCachedDao(GenericDao genericDao, long ttl, long tti, TimeUnit unit,
+                              double refreshAheadFraction, long staleWhileRevalidate, int refreshThreads,
+                              long tick, TimeUnit tickUnit) {
+        this.genericDao = genericDao;
+        this.defaultTtlNanos = unit.toNanos(ttl);
+        this.ttiNanos = unit.toNanos(tti);
+        this.refreshAheadFraction = refreshAheadFraction;
+        this.staleNanos = unit.toNanos(staleWhileRevalidate);
+        if (refreshThreads > 0) {
+            AtomicInteger threadId = new AtomicInteger();
+            // 有界队列 满了直接拒绝 由调用方放弃这次刷新
+            this.refreshPool = new ThreadPoolExecutor(refreshThreads, refreshThreads, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(refreshThreads * 64), r -> {
+                        Thread t = new Thread(r, "cache-refresh-" + threadId.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    });
+        } else {
+            this.refreshPool = null;
+        }
+        this.tickNanos = tickUnit.toNanos(tick);
+        this.wheel = new HierarchicalTimingWheel<>(tick, tickUnit, System.nanoTime());
+        this.maintenance = new Thread(this::maintain, "cache-maintenance");
+        this.maintenance.setDaemon(true);
+        this.maintenance.start();
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        GenericDao<Object> db = new GenericDao<Object>() {
+            @Override
+            public Object queryOne(Class<Object> beanClass, String sql, Object... params) {
+                return System.currentTimeMillis();
+            }
+        };
+        try (ExpiringCachedDao<Object> dao = new ExpiringCachedDao<>(db, 200, 0, TimeUnit.MILLISECONDS)) {
+            String sql = "select now()";
+            Object first = dao.queryOne(Object.class, sql);
+            System.out.println("第一次查询: " + first);
+            Object hit = dao.queryOne(Object.class, sql);
+            System.out.println("100ms 内命中: " + hit);
+            // 单独指定 50ms 过期
+            dao.queryOne(Object.class, 50, TimeUnit.MILLISECONDS, "select 1");
+            Thread.sleep(300);
+            System.out.println("过期后条目数: " + dao.size());
+            if (!first.equals(hit) || dao.size() != 0) {
+                throw new IllegalStateException("过期前没有命中或者过期后没有被清理");
+            }
+            Object reloaded = dao.queryOne(Object.class, sql);
+            System.out.println("过期后重新查询: " + reloaded);
+            if (first.equals(reloaded)) {
+                throw new IllegalStateException("过期后仍然返回旧值");
+            }
+        }
+        // 200ms 过期 过了 50% 提前刷新 到期后 100ms 内仍返回旧值
+        try (ExpiringCachedDao<Object> dao = new ExpiringCachedDao<>(db, 200, 0, TimeUnit.MILLISECONDS, 0.5, 100, 1)) {
+            String sql = "select now()";
+            Object first = dao.queryOne(Object.class, sql);
+            System.out.println("第一次查询: " + first);
+            Thread.sleep(120);
+            Object current = dao.queryOne(Object.class, sql);
+            System.out.println("触发提前刷新 返回当前值: " + current);
+            Thread.sleep(20);
+            Object refreshed = dao.queryOne(Object.class, sql);
+            System.out.println("刷新完成后: " + refreshed);
+            // 触发刷新的那次查询不等待 刷新在后台完成后 过期前就能拿到新值
+            if (!first.equals(current) || first.equals(refreshed)) {
+                throw new IllegalStateException("提前刷新没有生效");
+            }
+        }
+        // 按代失效 update 的耗时与缓存大小无关
+        try (ExpiringCachedDao<Object> dao = new ExpiringCachedDao<>(db, 0, 0, TimeUnit.MILLISECONDS)) {
+            for (int i = 0; i < 500_000; i++) {
+                dao.queryOne(Object.class, "select * from user where id = ?", i);
+            }
+            dao.update("update user set name = ?", "su");
+            for (int i = 0; i < 500_000; i++) {
+                dao.queryOne(Object.class, "select * from user where id = ?", i);
+            }
+            int before = dao.size();
+            long start = System.nanoTime();
+            dao.update("update user set name = ?", "su");
+            System.out.println("50 万条目时 update 耗时(us): " + (System.nanoTime() - start) / 1000);
+            Thread.sleep(2000);
+            System.out.println("update 前条目数: " + before + ", 维护线程清理后条目数: " + dao.size());
+            // update 只换代 旧代的条目由维护线程在后台清掉
+            if (before != 500_000 || dao.size() != 0) {
+                throw new IllegalStateException("旧代条目没有被清理");
+            }
+        }
+    }
+
+    public T queryOne(Class<T> beanClass, String sql, Object... params) {
+        return queryOne(beanClass, defaultTtlNanos, TimeUnit.NANOSECONDS, sql, params);
+    }
+
+    /**
+     * 单独指定该条目的写入后过期时间
+     */
+    public T queryOne(Class<T> beanClass, long ttl, TimeUnit unit, String sql, Object... params) {
+        // 命中时用线程私有的 SqlProbe 查找 不创建 key
+        T value = getIfPresent(SqlProbe.of(sql, params));
+        if (value != null) {
+            return value;
+        }
+        SqlPair key = new SqlPair(sql, params);
+        loadLock.readLock().lock();
+        try {
+            value = getIfPresent(key);
+            if (value != null) {
+                return value;
+            }
+            value = (T) genericDao.queryOne(beanClass, sql, params);
+            if (value != null) {
+                Entry<T> entry = newEntry(key, beanClass, value, unit.toNanos(ttl));
+                Entry<T> old = map.put(key, entry);
+                if (old != null) {
+                    retire(old);
+                }
+                track(entry);
+            }
+            return value;
+        } finally {
+            loadLock.readLock().unlock();
+        }
+    }
+
+    private Entry<T> newEntry(SqlPair key, Class<T> beanClass, T value, long ttlNanos) {
+        long now = System.nanoTime();
+        long expireAt = ttlNanos > 0 ? now + ttlNanos : Long.MAX_VALUE;
+        long refreshAt = ttlNanos > 0 && refreshPool != null && refreshAheadFraction > 0
+                ? now + (long) (ttlNanos * refreshAheadFraction) : Long.MAX_VALUE;
+        return new Entry<>(key, beanClass, value, ttlNanos, expireAt, refreshAt, now, generation.get());
+    }
+
+    // 需要过期的条目交给维护线程放入时间轮
+    private void track(Entry<T> entry) {
+        if (entry.expireAt != Long.MAX_VALUE || ttiNanos > 0) {
+            pending.add(entry);
+        }
+    }
+
+    // 过期的条目直接当作未命中 删除交给维护线程
+    private T getIfPresent(SqlKey key) {
+        Entry<T> entry = map.get(key);
+        if (entry == null || entry.generation != generation.get()) {
+            return null;
+        }
+        long now = System.nanoTime();
+        if (ttiNanos > 0 && now - entry.accessTime >= ttiNanos) {
+            return null;
+        }
+        if (entry.expireAt != Long.MAX_VALUE && now - entry.expireAt >= 0) {
+            // 到期了 在 stale 窗口内返回旧值并触发刷新
+            if (refreshPool == null || now - entry.expireAt >= staleNanos) {
+                return null;
+            }
+            refresh(entry);
+            return entry.value;
+        }
+        if (entry.refreshAt != Long.MAX_VALUE && now - entry.refreshAt >= 0) {
+            refresh(entry);
+        }
+        // 一个 tick 内多次访问只写一次 减少对共享缓存行的写
+        if (ttiNanos > 0 && now - entry.accessTime > tickNanos) {
+            entry.accessTime = now;
+        }
+        return entry.value;
+    }
+
+    public int update(String sql, Object... params) {
+        loadLock.writeLock().lock();
+        try {
+            int rows = genericDao.update(sql, params);
+            // 持有写锁期间没有加载 新代数之后放入的条目都是更新后查出的
+            generation.incrementAndGet();
+            LockSupport.unpark(maintenance);
+            return rows;
+        } finally {
+            loadLock.writeLock().unlock();
+        }
+    }
+
+    // 每个条目同一时刻只提交一次刷新
+    private void refresh(Entry<T> entry) {
+        if (!Entry.REFRESHING.compareAndSet(entry, 0, 1)) {
+            return;
+        }
+        try {
+            refreshPool.execute(() -> reload(entry));
+        } catch (RejectedExecutionException e) {
+            // 刷新线程池忙 放弃这次刷新 下次读再试
+            entry.refreshing = 0;
+        }
+    }
+
+    private void reload(Entry<T> entry) {
+        SqlPair key = entry.key;
+        loadLock.readLock().lock();
+        try {
+            if (entry.generation != generation.get()) {
+                // 提交刷新之后发生了 update 旧条目已失效 不用再刷新
+                return;
+            }
+            T value = (T) genericDao.queryOne(entry.beanClass, key.getSql(), key.getParams());
+            if (value == null) {
+                if (map.remove(key, entry)) {
+                    retire(entry);
+                }
+                return;
+            }
+            Entry<T> fresh = newEntry(key, entry.beanClass, value, entry.ttlNanos);
+            // 期间被 update 清掉或被其它线程替换的条目 不再放回
+            if (map.replace(key, entry, fresh)) {
+                retire(entry);
+                track(fresh);
+            }
+        } catch (RuntimeException e) {
+            // 刷新失败 保留旧值 在 stale 窗口内继续返回旧值 下次读再重试
+            entry.refreshing = 0;
+        } finally {
+            loadLock.readLock().unlock();
+        }
+    }
+
+    // 让维护线程把它从时间轮中移出
+    private void retire(Entry<T> entry) {
+        entry.retired = true;
+        pending.add(entry);
+    }
+
+    // 是否可以从 map 中删除了（超过了 stale 窗口）
+    private boolean isExpired(Entry<T> entry, long now) {
+        return (entry.expireAt != Long.MAX_VALUE && now - entry.expireAt >= staleNanos)
+                || (ttiNanos > 0 && now - entry.accessTime >= ttiNanos);
+    }
+
+    // 条目下一次需要检查的时间
+    private long nextDeadline(Entry<T> entry) {
+        long deadline = entry.expireAt == Long.MAX_VALUE ? Long.MAX_VALUE : entry.expireAt + staleNanos;
+        if (ttiNanos > 0) {
+            long idleDeadline = entry.accessTime + ttiNanos;
+            if (deadline == Long.MAX_VALUE || idleDeadline - deadline < 0) {
+                deadline = idleDeadline;
+            }
+        }
+        return deadline;
+    }
+
+    private void maintain() {
+        while (running) {
+            Entry<T> entry;
+            while ((entry = pending.poll()) != null) {
+                if (entry.retired) {
+                    if (entry.timeout != null) {
+                        wheel.cancel(entry.timeout);
+                        entry.timeout = null;
+                    }
+                } else if (entry.timeout == null) {
+                    entry.timeout = wheel.schedule(entry, nextDeadline(entry));
+                }
+            }
+            long now = System.nanoTime();
+            wheel.advance(now, this::onTimeout);
+            sweepStaleGenerations();
+            LockSupport.parkNanos(this, tickNanos);
+        }
+    }
+
+    // 每个 tick 最多删除这么多旧代条目 把释放对象的开销摊开
+    private static final int SWEEP_BATCH = 4096;
+
+    private void sweepStaleGenerations() {
+        if (sweep == null) {
+            long current = generation.get();
+            if (current == sweptGeneration) {
+                return;
+            }
+            sweepingGeneration = current;
+            sweep = map.values().iterator();
+        }
+        int removed = 0;
+        while (removed < SWEEP_BATCH && sweep.hasNext()) {
+            Entry<T> entry = sweep.next();
+            if (entry.generation < sweepingGeneration && map.remove(entry.key, entry)) {
+                entry.retired = true;
+                if (entry.timeout != null) {
+                    wheel.cancel(entry.timeout);
+                    entry.timeout = null;
+                }
+                removed++;
+            }
+        }
+        if (!sweep.hasNext()) {
+            sweep = null;
+            sweptGeneration = sweepingGeneration;
+        }
+    }
+
+    private void onTimeout(Entry<T> entry) {
+        entry.timeout = null;
+        if (entry.retired) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (isExpired(entry, now)) {
+            entry.retired = true;
+            map.remove(entry.key, entry);
+        } else {
+            // TTI 条目期间被访问过 按新的访问时间重新放入
+            entry.timeout = wheel.schedule(entry, nextDeadline(entry));
+        }
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(maintenance);
+        if (refreshPool != null) {
+            refreshPool.shutdown();
+        }
+    }
+
+    static final class Entry<T> {
+        // 字段更新器 不用为每个条目再创建一个 AtomicInteger 对象
+        static final AtomicIntegerFieldUpdater<Entry> REFRESHING =
+                AtomicIntegerFieldUpdater.newUpdater(Entry.class, "refreshing");
+
+        final SqlPair key;
+        final Class<T> beanClass;
+        final T value;
+        final long ttlNanos;
+        final long expireAt;
+        final long refreshAt;
+        // 放入时的代数
+        final long generation;
+        volatile long accessTime;
+        volatile boolean retired;
+        // 1 表示已提交刷新
+        volatile int refreshing;
+        // 只由维护线程访问
+        HierarchicalTimingWheel.Timeout<Entry<T>> timeout;
+
+        Entry(SqlPair key, Class<T> beanClass, T value, long ttlNanos, long expireAt, long refreshAt, long accessTime,
+              long generation) {
+            this.key = key;
+            this.beanClass = beanClass;
+            this.value = value;
+            this.ttlNanos = ttlNanos;
+            this.expireAt = expireAt;
+            this.refreshAt = refreshAt;
+            this.accessTime = accessTime;
+            this.generation = generation;
+        }
+    }
+}
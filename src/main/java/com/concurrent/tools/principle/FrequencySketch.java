@@ -0,0 +1,72 @@
+package com.concurrent.tools.principle;
+
+/**
+ * @program: su-concurrent
+ * @description: 频率统计 Count-Min Sketch
+ *     每个计数器 4 bit（最大 15），一个 long 放 16 个计数器，每个 key 对应 4 个计数器，取最小值作为频率
+ *     记录次数达到 10 倍容量后所有计数器减半（保鲜），让过去的热点逐渐冷却
+ *     本身不同步：BoundedCachedDao 在淘汰锁内访问，NearCache 在 sketchLock 内访问
+ * @author: Su
+ * @create: 2026-10-19 14:02
+ **/
+final class FrequencySketch {
+    private static final long[] SEED = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private final long[] table;
+    private final int counterMask;
+    private final int sampleSize;
+    private int additions;
+
+    FrequencySketch(long maximumSize) {
+        int size = 1;
+        while (size < Math.min(maximumSize, 1 << 24)) {
+            size <<= 1;
+        }
+        // 每个 long 16 个计数器 保证计数器个数约为容量的 4 倍
+        table = new long[Math.max(1, size / 4)];
+        counterMask = table.length * 16 - 1;
+        sampleSize = (int) Math.min(10 * maximumSize, Integer.MAX_VALUE);
+    }
+
+    int frequency(int hash) {
+        int frequency = Integer.MAX_VALUE;
+        for (int i = 0; i < 4; i++) {
+            int counter = indexOf(hash, i);
+            int count = (int) ((table[counter >>> 4] >>> ((counter & 15) << 2)) & 15L);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    void increment(int hash) {
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            int counter = indexOf(hash, i);
+            int index = counter >>> 4;
+            int offset = (counter & 15) << 2;
+            long mask = 15L << offset;
+            if ((table[index] & mask) != mask) {
+                table[index] += 1L << offset;
+                added = true;
+            }
+        }
+        if (added && ++additions == sampleSize) {
+            reset();
+        }
+    }
+
+    // 所有计数器减半
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        additions >>>= 1;
+    }
+
+    private int indexOf(int hash, int i) {
+        long h = (hash + SEED[i]) * SEED[i];
+        h += h >>> 32;
+        return (int) h & counterMask;
+    }
+}
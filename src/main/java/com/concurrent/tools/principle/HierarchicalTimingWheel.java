@@ -0,0 +1,253 @@
+package com.concurrent.tools.principle;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * @program: su-concurrent
+ * @description: 分层时间轮
+ *      背景：
+ *          大量定时任务（缓存过期、延迟消息）如果放在按时间排序的结构里（如 DelayQueue 的堆），插入是 O(logn)
+ *          时间轮像钟表一样，把时间分成一格一格（tick），每格一个链表，插入和取消都是 O(1)
+ *      分层：
+ *          第 0 层 64 格，每格 1 个 tick；第 1 层 64 格，每格 64 个 tick；第 l 层每格 64^l 个 tick，共 6 层
+ *          到期时间较远的任务先放在高层，指针走到高层某一格的起点时，把这一格的任务"降级"重新放到低层（cascade）
+ *          到期时间超出 6 层范围的任务先放在最高层，到点后重新计算
+ *      注意：
+ *          该类不是线程安全的，只能由一个线程（通常是后台维护线程）访问，其它线程通过队列把任务交给它
+ * @author: Su
+ * @create: 2026-10-19 15:10
+ **/
+public final class HierarchicalTimingWheel<E> {
+    private static final int BITS = 6;
+    private static final int SLOTS = 1 << BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+    private static final int LEVELS = 6;
+    // 最高层能表示的最大 tick 跨度
+    private static final long MAX_SPAN = 1L << (BITS * LEVELS);
+
+    private final Timeout<E>[][] wheels;
+    private final long tickNanos;
+    private final long startNanos;
+    // 指针 已经处理到的 tick
+    private long currentTick;
+    private int size;
+
+    public HierarchicalTimingWheel(long tick, TimeUnit unit, long startNanos) {
+        this.tickNanos = Math.max(1, unit.toNanos(tick));
+        this.startNanos = startNanos;
+        this.wheels = new Timeout[LEVELS][SLOTS];
+    }
+
+    public static void main(String[] args) {
+        long start = System.nanoTime();
+        HierarchicalTimingWheel<String> wheel = new HierarchicalTimingWheel<>(1, TimeUnit.MILLISECONDS, start);
+        wheel.schedule("10ms", start + TimeUnit.MILLISECONDS.toNanos(10));
+        wheel.schedule("100ms", start + TimeUnit.MILLISECONDS.toNanos(100));
+        Timeout<String> cancelled = wheel.schedule("50ms 被取消", start + TimeUnit.MILLISECONDS.toNanos(50));
+        wheel.cancel(cancelled);
+        List<String> fired = new ArrayList<>();
+        while (wheel.size() > 0) {
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+            wheel.advance(System.nanoTime(), element -> {
+                System.out.println("到期: " + element + ", 实际经过(ms): "
+                        + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                fired.add(element);
+            });
+        }
+        // 被取消的不会到期 其余按到期时间先后触发
+        if (!fired.equals(Arrays.asList("10ms", "100ms"))) {
+            throw new IllegalStateException("到期顺序不对: " + fired);
+        }
+        if (System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(100)) {
+            throw new IllegalStateException("任务提前到期");
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * 添加定时任务 O(1)
+     * @param deadlineNanos 到期时间 与 System.nanoTime() 同一时间轴
+     */
+    public Timeout<E> schedule(E element, long deadlineNanos) {
+        Timeout<E> timeout = new Timeout<>(element, deadlineNanos);
+        insert(timeout, 1);
+        size++;
+        return timeout;
+    }
+
+    /**
+     * 取消定时任务 O(1)
+     */
+    public boolean cancel(Timeout<E> timeout) {
+        if (timeout.level < 0) {
+            return false;
+        }
+        unlink(timeout);
+        size--;
+        return true;
+    }
+
+    /**
+     * 将指针推进到 nowNanos，回调所有到期的任务
+     * @return 到期的任务数
+     */
+    public int advance(long nowNanos, Consumer<? super E> expired) {
+        long targetTick = (nowNanos - startNanos) / tickNanos;
+        if (size == 0) {
+            // 没有任务 直接跳过去
+            currentTick = Math.max(currentTick, targetTick);
+            return 0;
+        }
+        int count = 0;
+        while (currentTick < targetTick) {
+            currentTick++;
+            // 从高层往低层降级 到了某一层某一格的起点才需要降级
+            for (int level = LEVELS - 1; level > 0; level--) {
+                if ((currentTick & ((1L << (BITS * level)) - 1)) == 0) {
+                    cascade(level, (int) (currentTick >>> (BITS * level)) & SLOT_MASK);
+                }
+            }
+            Timeout<E> timeout = wheels[0][(int) currentTick & SLOT_MASK];
+            while (timeout != null) {
+                Timeout<E> next = timeout.next;
+                unlink(timeout);
+                if (timeout.deadlineTick > currentTick) {
+                    // 超出最大跨度被截断的任务 重新放入
+                    insert(timeout, 1);
+                } else {
+                    size--;
+                    count++;
+                    expired.accept(timeout.element);
+                }
+                timeout = next;
+            }
+            if (size == 0) {
+                currentTick = targetTick;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 下一次推进时最早可能有事可做（任务到期或降级）的时间，等待的线程睡到这个时间即可，不用每个 tick 醒一次
+     * 高层的格子按降级的时间计算，所以返回值不晚于真正的最早到期时间；最多扫描 LEVELS * SLOTS 个格子
+     * @return 与 System.nanoTime() 同一时间轴 没有任务时返回 Long.MAX_VALUE
+     */
+    public long nextDeadlineNanos() {
+        if (size == 0) {
+            return Long.MAX_VALUE;
+        }
+        long next = Long.MAX_VALUE;
+        for (int level = 0; level < LEVELS; level++) {
+            int shift = BITS * level;
+            // 该层之后的第 k 格在 tick 为 ((currentTick >>> shift) + k) << shift 时被处理
+            for (int k = 1; k <= SLOTS; k++) {
+                long tick = ((currentTick >>> shift) + k) << shift;
+                if (tick >= next) {
+                    break;
+                }
+                if (wheels[level][(int) (tick >>> shift) & SLOT_MASK] != null) {
+                    next = tick;
+                    break;
+                }
+            }
+        }
+        return startNanos + next * tickNanos;
+    }
+
+    private void cascade(int level, int slot) {
+        Timeout<E> timeout = wheels[level][slot];
+        wheels[level][slot] = null;
+        while (timeout != null) {
+            Timeout<E> next = timeout.next;
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.level = -1;
+            // 降级发生在处理第 0 层当前格之前 当前 tick 到期的任务可以放入当前格
+            insert(timeout, 0);
+            timeout = next;
+        }
+    }
+
+    private void insert(Timeout<E> timeout, long minDelta) {
+        long tick = ceilTick(timeout.deadlineNanos);
+        timeout.deadlineTick = tick;
+        // 当前格已经处理过了 已经到期的任务放到下一格 下次推进时触发
+        long delta = Math.max(minDelta, tick - currentTick);
+        if (delta >= MAX_SPAN) {
+            delta = MAX_SPAN - 1;
+        }
+        long slotTick = currentTick + delta;
+        int level = 0;
+        while (delta >= (1L << (BITS * (level + 1)))) {
+            level++;
+        }
+        int slot = (int) (slotTick >>> (BITS * level)) & SLOT_MASK;
+        Timeout<E> head = wheels[level][slot];
+        timeout.next = head;
+        timeout.prev = null;
+        if (head != null) {
+            head.prev = timeout;
+        }
+        wheels[level][slot] = timeout;
+        timeout.level = level;
+        timeout.slot = slot;
+    }
+
+    private void unlink(Timeout<E> timeout) {
+        if (timeout.prev == null) {
+            wheels[timeout.level][timeout.slot] = timeout.next;
+        } else {
+            timeout.prev.next = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.level = -1;
+    }
+
+    private long ceilTick(long deadlineNanos) {
+        long elapsed = deadlineNanos - startNanos;
+        return elapsed <= 0 ? 0 : (elapsed + tickNanos - 1) / tickNanos;
+    }
+
+    /**
+     * 定时任务 同时是时间轮格子中双向链表的节点
+     */
+    public static final class Timeout<E> {
+        private final E element;
+        private final long deadlineNanos;
+        private long deadlineTick;
+        // 所在的层和格 -1 表示不在时间轮中
+        private int level = -1;
+        private int slot;
+        private Timeout<E> prev;
+        private Timeout<E> next;
+
+        Timeout(E element, long deadlineNanos) {
+            this.element = element;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        public E getElement() {
+            return element;
+        }
+
+        public long getDeadlineNanos() {
+            return deadlineNanos;
+        }
+    }
+}
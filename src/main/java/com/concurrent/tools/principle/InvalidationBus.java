@@ -0,0 +1,400 @@
+package com.concurrent.tools.principle;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * @program: su-concurrent
+ * @description: 多节点缓存失效总线
+ *      问题：
+ *          CachedDao 只适合单机，多个 JVM 各自有本地缓存，一个节点更新了数据库，其它节点的缓存直到重启都是旧的
+ *      思路：
+ *          1. 节点更新数据库后，把受影响的表名交给总线；总线在一个很短的窗口内合并（同一张表只发一次），批量广播
+ *          2. 每个节点发出的批次带有递增的序号，接收方记录每个发送方已处理到的序号
+ *             收到的序号不连续（中间的消息丢了）时，按序号向传输层补拉（catch-up）；
+ *             传输层保留的历史不够补时，只能清空整个本地缓存
+ *          3. 后台线程定期比较各发送方的最新序号，即使最后一条消息丢了也能发现并补上
+ *          4. 节点重启后序号从 1 重新开始，所以发送方的身份是 nodeId + 实例号（incarnation，取启动时间，重启后更大）：
+ *             收到新实例的批次时，先补齐旧实例剩下的批次（补不齐就清空），再从新实例的序号 0 开始记录；旧实例迟到的批次直接丢弃
+ *      传输层（InvalidationTransport）可替换为 MQ、Redis 等，这里提供进程内的 LoopbackTransport 用于测试，可以模拟丢消息
+ * @author: Su
+ * @create: 2026-10-19 21:15
+ **/
+public class InvalidationBus implements AutoCloseable {
+    private final String nodeId;
+    // 本实例的实例号 同一个 nodeId 重启后变大
+    private final long incarnation = System.currentTimeMillis();
+    private final InvalidationTransport transport;
+    private final ScheduledExecutorService scheduler;
+    // 待发送的表名 窗口内合并
+    private final Set<String> pendingTables = new HashSet<>();
+    private boolean pendingAll;
+    private long nextSeq = 1;
+    // 每个发送方已处理到的实例号和序号
+    private final Map<String, Position> lastSeen = new HashMap<>();
+    private final Consumer<Set<String>> onInvalidateTables;
+    private final Runnable onInvalidateAll;
+
+    /**
+     * @param onInvalidateTables 收到其它节点的失效消息时 失效本地缓存中这些表的条目
+     * @param onInvalidateAll 无法补齐消息时 清空本地缓存
+     */
+    public InvalidationBus(String nodeId, InvalidationTransport transport, long window, TimeUnit unit,
+                           Consumer<Set<String>> onInvalidateTables, Runnable onInvalidateAll) {
+        this.nodeId = nodeId;
+        this.transport = transport;
+        this.onInvalidateTables = onInvalidateTables;
+        this.onInvalidateAll = onInvalidateAll;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "invalidation-bus-" + nodeId);
+            t.setDaemon(true);
+            return t;
+        });
+        transport.subscribe(this::onBatch);
+        scheduler.scheduleWithFixedDelay(this::flush, window, window, unit);
+        scheduler.scheduleWithFixedDelay(this::catchUpAll, 10 * window, 10 * window, unit);
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        // 三个节点 模拟 30% 的丢包
+        LoopbackTransport transport = new LoopbackTransport(1024, 0.3);
+        List<TaggedCachedDao<Object>> nodes = new ArrayList<>();
+        List<InvalidationBus> buses = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            TaggedCachedDao<Object> dao = new TaggedCachedDao<>(new GenericDao<Object>() {
+                @Override
+                public Object queryOne(Class<Object> beanClass, String sql, Object... params) {
+                    return params[0];
+                }
+            });
+            InvalidationBus bus = new InvalidationBus("node" + i, transport, 5, TimeUnit.MILLISECONDS,
+                    dao::invalidate, dao::invalidateAll);
+            dao.setInvalidationBus(bus);
+            nodes.add(dao);
+            buses.add(bus);
+        }
+        for (int round = 0; round < 20; round++) {
+            for (TaggedCachedDao<Object> dao : nodes) {
+                dao.queryOne(Object.class, "select * from user where id = ?", round);
+            }
+            // 节点 0 更新 user 表 其它节点也要失效
+            nodes.get(0).update("update user set name = ? where id = ?", "su", round);
+        }
+        Thread.sleep(200);
+        // 丢失的失效消息通过序号补齐 所有节点最终都没有旧数据
+        for (int i = 0; i < nodes.size(); i++) {
+            System.out.println("node" + i + " 缓存条目数: " + nodes.get(i).size());
+            if (nodes.get(i).size() != 0) {
+                throw new IllegalStateException("node" + i + " 丢失了失效消息");
+            }
+        }
+        // node0 重启：同一个 nodeId 的新实例 序号从 1 重新开始 其它节点不能把它的批次当成重复丢掉
+        buses.get(0).close();
+        Thread.sleep(5);
+        TaggedCachedDao<Object> restarted = new TaggedCachedDao<>(new GenericDao<Object>());
+        InvalidationBus restartedBus = new InvalidationBus("node0", transport, 5, TimeUnit.MILLISECONDS,
+                restarted::invalidate, restarted::invalidateAll);
+        restarted.setInvalidationBus(restartedBus);
+        buses.set(0, restartedBus);
+        for (int i = 1; i < nodes.size(); i++) {
+            nodes.get(i).queryOne(Object.class, "select * from orders where id = ?", 1);
+        }
+        restarted.update("update orders set amount = ? where id = ?", 1, 1);
+        Thread.sleep(200);
+        for (int i = 1; i < nodes.size(); i++) {
+            System.out.println("node0 重启后 node" + i + " 缓存条目数: " + nodes.get(i).size());
+            if (nodes.get(i).size() != 0) {
+                throw new IllegalStateException("node" + i + " 丢掉了重启后的 node0 的失效消息");
+            }
+        }
+        for (InvalidationBus bus : buses) {
+            bus.close();
+        }
+        transport.close();
+    }
+
+    /**
+     * 本节点更新了这些表 合并后异步广播
+     */
+    public void publish(Set<String> tables) {
+        synchronized (pendingTables) {
+            if (tables.isEmpty()) {
+                pendingAll = true;
+            } else {
+                pendingTables.addAll(tables);
+            }
+        }
+    }
+
+    private void flush() {
+        InvalidationBatch batch;
+        synchronized (pendingTables) {
+            if (pendingTables.isEmpty() && !pendingAll) {
+                return;
+            }
+            batch = new InvalidationBatch(nodeId, incarnation, nextSeq++, new HashSet<>(pendingTables), pendingAll);
+            pendingTables.clear();
+            pendingAll = false;
+        }
+        transport.send(batch);
+    }
+
+    private void onBatch(InvalidationBatch batch) {
+        if (batch.sender.equals(nodeId)) {
+            return;
+        }
+        synchronized (lastSeen) {
+            Position seen = positionOf(batch.sender, batch.incarnation);
+            if (batch.incarnation < seen.incarnation) {
+                // 已经被重启取代的旧实例 迟到的批次
+                return;
+            }
+            switchIncarnation(batch.sender, seen, batch.incarnation);
+            if (batch.incarnation != seen.incarnation || batch.seq <= seen.seq) {
+                // 重复或补拉时已处理过
+                return;
+            }
+            if (batch.seq > seen.seq + 1) {
+                // 中间有消息丢失 先补齐
+                catchUp(batch.sender, seen);
+                if (batch.incarnation != seen.incarnation || batch.seq <= seen.seq) {
+                    return;
+                }
+            }
+            apply(batch, seen);
+        }
+    }
+
+    private void catchUpAll() {
+        synchronized (lastSeen) {
+            for (String sender : transport.senders()) {
+                if (sender.equals(nodeId)) {
+                    continue;
+                }
+                InvalidationBatch latest = transport.latest(sender);
+                if (latest == null) {
+                    continue;
+                }
+                Position seen = positionOf(sender, latest.incarnation);
+                if (latest.incarnation < seen.incarnation) {
+                    continue;
+                }
+                switchIncarnation(sender, seen, latest.incarnation);
+                if (latest.incarnation == seen.incarnation && latest.seq > seen.seq) {
+                    catchUp(sender, seen);
+                }
+            }
+        }
+    }
+
+    // 持有 lastSeen 锁调用 第一次见到的发送方从序号 0 开始
+    private Position positionOf(String sender, long incarnation) {
+        return lastSeen.computeIfAbsent(sender, s -> new Position(incarnation));
+    }
+
+    // 持有 lastSeen 锁调用 发送方重启了：先补齐旧实例剩下的批次 再从新实例的序号 0 开始
+    private void switchIncarnation(String sender, Position seen, long incarnation) {
+        if (incarnation <= seen.incarnation) {
+            return;
+        }
+        catchUp(sender, seen);
+        if (incarnation > seen.incarnation) {
+            seen.incarnation = incarnation;
+            seen.seq = 0;
+        }
+    }
+
+    // 持有 lastSeen 锁调用
+    private void catchUp(String sender, Position seen) {
+        List<InvalidationBatch> missed = transport.fetchSince(sender, seen.incarnation, seen.seq);
+        if (missed == null) {
+            // 历史不够 无法补齐 只能清空
+            onInvalidateAll.run();
+            InvalidationBatch latest = transport.latest(sender);
+            if (latest != null) {
+                seen.incarnation = latest.incarnation;
+                seen.seq = latest.seq;
+            }
+            return;
+        }
+        for (InvalidationBatch batch : missed) {
+            apply(batch, seen);
+        }
+    }
+
+    private void apply(InvalidationBatch batch, Position seen) {
+        if (batch.all) {
+            onInvalidateAll.run();
+        } else {
+            onInvalidateTables.accept(batch.tables);
+        }
+        seen.seq = batch.seq;
+    }
+
+    @Override
+    public void close() {
+        // 先停掉定时 flush 并等它结束 否则最后一次 flush 可能与它并发 序号大的批次先发出
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
+    /**
+     * 某个发送方已处理到的位置 只在 lastSeen 锁内访问
+     */
+    static final class Position {
+        long incarnation;
+        long seq;
+
+        Position(long incarnation) {
+            this.incarnation = incarnation;
+        }
+    }
+}
+
+/**
+ * 失效消息批次
+ */
+final class InvalidationBatch {
+    final String sender;
+    // 发送方的实例号 同一个实例内 seq 从 1 开始递增
+    final long incarnation;
+    final long seq;
+    final Set<String> tables;
+    // 解析不出表名的更新 需要清空全部
+    final boolean all;
+
+    InvalidationBatch(String sender, long incarnation, long seq, Set<String> tables, boolean all) {
+        this.sender = sender;
+        this.incarnation = incarnation;
+        this.seq = seq;
+        this.tables = Collections.unmodifiableSet(tables);
+        this.all = all;
+    }
+}
+
+/**
+ * 传输层 发送可以丢失，但必须能按序号补拉一段历史
+ */
+interface InvalidationTransport {
+    void send(InvalidationBatch batch);
+
+    void subscribe(Consumer<InvalidationBatch> subscriber);
+
+    /**
+     * @return 该发送方这个实例序号大于 afterSeq 的批次（按序号排列），历史已被丢弃无法补齐时返回 null
+     */
+    List<InvalidationBatch> fetchSince(String sender, long incarnation, long afterSeq);
+
+    /**
+     * @return 该发送方最近发出的批次 没有时返回 null
+     */
+    InvalidationBatch latest(String sender);
+
+    Set<String> senders();
+}
+
+/**
+ * 进程内的传输层 用于测试
+ *     每个发送方保留最近 historySize 个批次用于补拉（同一个 nodeId 的各个实例共用，按发送先后排列）
+ *     投递在单独的线程中异步进行，可以按概率丢弃（模拟网络丢包）
+ */
+class LoopbackTransport implements InvalidationTransport, AutoCloseable {
+    private final int historySize;
+    private final double dropRate;
+    private final Map<String, ArrayDeque<InvalidationBatch>> history = new ConcurrentHashMap<>();
+    private final List<Consumer<InvalidationBatch>> subscribers = new CopyOnWriteArrayList<>();
+    private final ExecutorService delivery = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "loopback-transport");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public LoopbackTransport(int historySize, double dropRate) {
+        this.historySize = historySize;
+        this.dropRate = dropRate;
+    }
+
+    @Override
+    public void send(InvalidationBatch batch) {
+        ArrayDeque<InvalidationBatch> log = history.computeIfAbsent(batch.sender, s -> new ArrayDeque<>());
+        synchronized (log) {
+            log.addLast(batch);
+            if (log.size() > historySize) {
+                log.removeFirst();
+            }
+        }
+        for (Consumer<InvalidationBatch> subscriber : subscribers) {
+            if (ThreadLocalRandom.current().nextDouble() >= dropRate) {
+                delivery.execute(() -> subscriber.accept(batch));
+            }
+        }
+    }
+
+    @Override
+    public void subscribe(Consumer<InvalidationBatch> subscriber) {
+        subscribers.add(subscriber);
+    }
+
+    @Override
+    public List<InvalidationBatch> fetchSince(String sender, long incarnation, long afterSeq) {
+        ArrayDeque<InvalidationBatch> log = history.get(sender);
+        if (log == null) {
+            return Collections.emptyList();
+        }
+        synchronized (log) {
+            InvalidationBatch first = log.peekFirst();
+            // 最早的一条已经是更新的实例 或者是这个实例但序号接不上 说明要的历史已被丢弃
+            if (first != null && (first.incarnation > incarnation
+                    || first.incarnation == incarnation && first.seq > afterSeq + 1)) {
+                return null;
+            }
+            List<InvalidationBatch> result = new ArrayList<>();
+            for (InvalidationBatch batch : log) {
+                if (batch.incarnation == incarnation && batch.seq > afterSeq) {
+                    result.add(batch);
+                }
+            }
+            return result;
+        }
+    }
+
+    @Override
+    public InvalidationBatch latest(String sender) {
+        ArrayDeque<InvalidationBatch> log = history.get(sender);
+        if (log == null) {
+            return null;
+        }
+        synchronized (log) {
+            return log.peekLast();
+        }
+    }
+
+    @Override
+    public Set<String> senders() {
+        return history.keySet();
+    }
+
+    @Override
+    public void close() {
+        delivery.shutdown();
+    }
+}
@@ -0,0 +1,26 @@
+package com.concurrent.tools.principle;
+
+import java.sql.SQLException;
+
+/**
+ * @program: su-concurrent
+ * @description: 带延迟的连接 创建时即占用一个数据库会话并支付建连开销，作为 Pool 中的连接使用
+ * @author: Su
+ * @create: 2026-10-19 10:12
+ **/
+class LatencyConnection extends MockConnection {
+    private final LatencyDatabase.Session session;
+
+    public LatencyConnection(LatencyDatabase db) {
+        this.session = db.openSession();
+    }
+
+    public LatencyDatabase.Session getSession() {
+        return session;
+    }
+
+    @Override
+    public void close() throws SQLException {
+        session.close();
+    }
+}
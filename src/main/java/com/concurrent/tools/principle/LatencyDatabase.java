@@ -0,0 +1,215 @@
+package com.concurrent.tools.principle;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiFunction;
+
+/**
+ * @program: su-concurrent
+ * @description: 带延迟的内存数据库替身
+ *      背景：
+ *          MockConnection 和 GenericDao 都是立刻返回 null 或 1，基于它们的 Pool、GenericCachedDao2 根本测不出性能差异
+ *          要在本机复现线上的连接池耗尽、缓存击穿，就需要一个"慢"的数据库，但又不想真的连网络
+ *      模拟的内容：
+ *          1. 每条 sql 的耗时服从对数正态分布（中位数 + 长尾），这与真实数据库的延迟分布比较接近
+ *          2. 数据库的会话数有限（类似 max_connections），用 Semaphore 限制，超过等待时间则报错
+ *          3. 以一定概率出现慢查询
+ *          4. 建立连接有固定开销，所以每次查询都新建连接会比走连接池慢很多
+ *      用法：
+ *          LatencyConnection 作为 Pool 中的连接对象，LatencyGenericDao 作为缓存下面的 dao
+ * @author: Su
+ * @create: 2026-10-19 10:12
+ **/
+public class LatencyDatabase {
+    // 批量查询中每多一行的额外耗时（微秒）
+    private static final long BATCH_ROW_MICROS = 20;
+    // 会话数上限
+    private final Semaphore sessions;
+    private final int maxSessions;
+    // 查询耗时中位数（微秒）
+    private final long medianMicros;
+    // 对数正态分布的 sigma，越大长尾越明显
+    private final double sigma;
+    // 慢查询概率及慢查询耗时（微秒）
+    private final double slowQueryRate;
+    private final long slowQueryMicros;
+    // 建立连接的开销（微秒）
+    private final long connectMicros;
+    // 等待会话的最长时间（毫秒），超过则认为连接数耗尽
+    private final long sessionWaitMillis;
+    // 根据 sql 和参数生成查询结果
+    private volatile BiFunction<String, Object[], Object> rowMapper =
+            (sql, params) -> sql + Arrays.toString(params);
+
+    // 统计信息 使用 LongAdder 避免统计本身成为竞争点
+    final LongAdder queries = new LongAdder();
+    final LongAdder updates = new LongAdder();
+    final LongAdder slowQueries = new LongAdder();
+    final LongAdder connects = new LongAdder();
+    final LongAdder sessionWaitNanos = new LongAdder();
+
+    public LatencyDatabase() {
+        this(8, 500, 0.5, 0.01, 50_000, 2_000, 1000);
+    }
+
+    public LatencyDatabase(int maxSessions, long medianMicros, double sigma,
+                           double slowQueryRate, long slowQueryMicros,
+                           long connectMicros, long sessionWaitMillis) {
+        this.maxSessions = maxSessions;
+        this.sessions = new Semaphore(maxSessions, true);
+        this.medianMicros = medianMicros;
+        this.sigma = sigma;
+        this.slowQueryRate = slowQueryRate;
+        this.slowQueryMicros = slowQueryMicros;
+        this.connectMicros = connectMicros;
+        this.sessionWaitMillis = sessionWaitMillis;
+    }
+
+    public static void main(String[] args) {
+        LatencyDatabase db = new LatencyDatabase();
+        // 连接池比并发线程少，模拟连接池耗尽
+        Pool pool = new Pool(4, () -> new LatencyConnection(db));
+        GenericDao<Object> dao = new LatencyGenericDao<>(pool);
+        long start = System.nanoTime();
+        Thread[] threads = new Thread[16];
+        for (int i = 0; i < threads.length; i++) {
+            int id = i;
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < 50; j++) {
+                    dao.queryOne(Object.class, "select * from user where id = ?", id * 100 + j);
+                }
+            }, "t" + i);
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+        System.out.println("耗时(ms): " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        System.out.println(db);
+        if (db.queries.sum() != threads.length * 50) {
+            throw new IllegalStateException("查询次数不对: " + db.queries.sum());
+        }
+    }
+
+    public void setRowMapper(BiFunction<String, Object[], Object> rowMapper) {
+        this.rowMapper = rowMapper;
+    }
+
+    public int getMaxSessions() {
+        return maxSessions;
+    }
+
+    /**
+     * 打开会话：先占用一个会话名额（等不到则报错），再支付建连开销
+     */
+    public Session openSession() {
+        long start = System.nanoTime();
+        try {
+            if (!sessions.tryAcquire(sessionWaitMillis, TimeUnit.MILLISECONDS)) {
+                throw new IllegalStateException("too many sessions, max = " + maxSessions);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while waiting for session", e);
+        } finally {
+            sessionWaitNanos.add(System.nanoTime() - start);
+        }
+        connects.increment();
+        pause(connectMicros);
+        return new Session();
+    }
+
+    // 按对数正态分布采样一次耗时，并以一定概率变成慢查询
+    private long sampleMicros() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (random.nextDouble() < slowQueryRate) {
+            slowQueries.increment();
+            return slowQueryMicros;
+        }
+        return (long) (medianMicros * Math.exp(sigma * random.nextGaussian()));
+    }
+
+    // 微秒级别的等待 Thread.sleep 精度不够，使用 parkNanos
+    private static void pause(long micros) {
+        long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(micros);
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "LatencyDatabase{" +
+                "queries=" + queries.sum() +
+                ", updates=" + updates.sum() +
+                ", slowQueries=" + slowQueries.sum() +
+                ", connects=" + connects.sum() +
+                ", sessionWaitMs=" + TimeUnit.NANOSECONDS.toMillis(sessionWaitNanos.sum()) +
+                '}';
+    }
+
+    /**
+     * 数据库会话 一个会话同一时刻只执行一条 sql
+     */
+    class Session implements AutoCloseable {
+        private boolean closed;
+
+        public synchronized Object query(String sql, Object... params) {
+            checkOpen();
+            queries.increment();
+            pause(sampleMicros());
+            return rowMapper.apply(sql, params);
+        }
+
+        // 一次往返查询多组参数 只支付一次网络和解析的耗时
+        public synchronized List<Object> queryBatch(String sql, List<Object[]> paramsList) {
+            checkOpen();
+            queries.increment();
+            pause(sampleMicros() + BATCH_ROW_MICROS * (paramsList.size() - 1));
+            List<Object> rows = new ArrayList<>(paramsList.size());
+            for (Object[] params : paramsList) {
+                rows.add(rowMapper.apply(sql, params));
+            }
+            return rows;
+        }
+
+        public synchronized int update(String sql, Object... params) {
+            checkOpen();
+            updates.increment();
+            pause(sampleMicros());
+            return 1;
+        }
+
+        public synchronized int updateBatch(String sql, List<Object[]> paramsList) {
+            checkOpen();
+            updates.increment();
+            pause(sampleMicros() + BATCH_ROW_MICROS * (paramsList.size() - 1));
+            return paramsList.size();
+        }
+
+        private void checkOpen() {
+            if (closed) {
+                throw new IllegalStateException("session closed");
+            }
+        }
+
+        @Override
+        public synchronized void close() {
+            if (!closed) {
+                closed = true;
+                sessions.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.concurrent.tools.principle;
+
+import java.sql.Connection;
+import java.util.List;
+
+/**
+ * @program: su-concurrent
+ * @description: 基于 LatencyDatabase 的 dao
+ *     有连接池时从 Pool 借连接，连接池耗尽时线程在 Pool 的信号量上排队
+ *     没有连接池时每次都新建会话，要支付建连开销
+ * @author: Su
+ * @create: 2026-10-19 10:12
+ **/
+class LatencyGenericDao<T> extends GenericDao<T> {
+    private final Pool pool;
+    private final LatencyDatabase db;
+
+    public LatencyGenericDao(Pool pool) {
+        this.pool = pool;
+        this.db = null;
+    }
+
+    public LatencyGenericDao(LatencyDatabase db) {
+        this.pool = null;
+        this.db = db;
+    }
+
+    @Override
+    public T queryOne(Class<T> beanClass, String sql, Object... params) {
+        if (pool == null) {
+            try (LatencyDatabase.Session session = db.openSession()) {
+                return (T) session.query(sql, params);
+            }
+        }
+        Connection conn = pool.borrow();
+        try {
+            return (T) ((LatencyConnection) conn).getSession().query(sql, params);
+        } finally {
+            pool.free(conn);
+        }
+    }
+
+    @Override
+    public List<T> queryMany(Class<T> beanClass, String sql, List<Object[]> paramsList) {
+        if (pool == null) {
+            try (LatencyDatabase.Session session = db.openSession()) {
+                return (List<T>) session.queryBatch(sql, paramsList);
+            }
+        }
+        Connection conn = pool.borrow();
+        try {
+            return (List<T>) ((LatencyConnection) conn).getSession().queryBatch(sql, paramsList);
+        } finally {
+            pool.free(conn);
+        }
+    }
+
+    @Override
+    public int update(String sql, Object... params) {
+        if (pool == null) {
+            try (LatencyDatabase.Session session = db.openSession()) {
+                return session.update(sql, params);
+            }
+        }
+        Connection conn = pool.borrow();
+        try {
+            return ((LatencyConnection) conn).getSession().update(sql, params);
+        } finally {
+            pool.free(conn);
+        }
+    }
+
+    @Override
+    public int updateMany(String sql, List<Object[]> paramsList) {
+        if (pool == null) {
+            try (LatencyDatabase.Session session = db.openSession()) {
+                return session.updateBatch(sql, paramsList);
+            }
+        }
+        Connection conn = pool.borrow();
+        try {
+            return ((LatencyConnection) conn).getSession().updateBatch(sql, paramsList);
+        } finally {
+            pool.free(conn);
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.concurrent.tools.principle;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * @program: su-concurrent
+ * @description: 线程本地的 L0 近缓存（只放最热的 key）
+ *      问题：
+ *          即使缓存命中，GenericCachedDao2 每次也要加读锁（读锁的计数在所有线程之间共享，cas 竞争同一个缓存行）再查 map
+ *          少数热点 key 占了一半的读，这部分读全在争抢同一把锁
+ *      思路：
+ *          1. 每个线程一个很小的直接映射表（按 hash 取槽，冲突直接覆盖），命中时只读本线程的数组，不加锁、不分配对象
+ *          2. 只有热点 key 才放进来：L1 命中时按 1/16 的比例采样，计入共享的 FrequencySketch，估计频率达到阈值才放入 L0
+ *             采样时 tryLock 取不到锁就放弃这次采样，统计本身不会成为竞争点
+ *          3. 失效靠全局 epoch：update 清空 L1 后 epoch 加一，L0 的槽记录放入时的 epoch，不相等就当作未命中
+ *             读 L1 之前先读 epoch，保证读到的旧值一定带着旧的 epoch
+ * @author: Su
+ * @create: 2026-10-19 22:50
+ **/
+final class NearCache {
+    private static final int SAMPLE_MASK = 15;
+    private final AtomicLong epoch = new AtomicLong();
+    private final ThreadLocal<Local> local;
+    private final int mask;
+    private final int hotThreshold;
+    private final FrequencySketch sketch;
+    private final ReentrantLock sketchLock = new ReentrantLock();
+    // L0 命中次数 用于观察效果
+    final LongAdder hits = new LongAdder();
+
+    /**
+     * @param slots 每个线程的槽数 会向上取为 2 的幂
+     * @param expectedKeys L1 中 key 的大致数量 决定频率统计的大小
+     * @param hotThreshold 采样后的估计频率达到多少算热点（最大 15）
+     */
+    NearCache(int slots, long expectedKeys, int hotThreshold) {
+        int size = 1;
+        while (size < slots) {
+            size <<= 1;
+        }
+        int tableSize = size;
+        this.mask = size - 1;
+        this.local = ThreadLocal.withInitial(() -> new Local(tableSize));
+        this.hotThreshold = hotThreshold;
+        this.sketch = new FrequencySketch(expectedKeys);
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        String sql = "select * from user where id = ?";
+        AtomicLong version = new AtomicLong();
+        GenericCachedDao2<Object> dao = new GenericCachedDao2<>(new GenericDao<Object>() {
+            @Override
+            public Object queryOne(Class<Object> beanClass, String sql, Object... params) {
+                return params[0] + "@v" + version.get();
+            }
+        });
+        NearCache nearCache = new NearCache(64, 10_000, 4);
+        dao.setNearCache(nearCache);
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int j = 0; j < 1_000_000; j++) {
+                    // 一半的读落在 10 个热点 key 上
+                    int id = random.nextBoolean() ? random.nextInt(10) : random.nextInt(10_000);
+                    dao.queryOne(Object.class, sql, id);
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        System.out.println("L0 命中比例: " + nearCache.hits.sum() * 100 / 8_000_000 + "%");
+        if (nearCache.hits.sum() == 0) {
+            throw new IllegalStateException("热点 key 没有进入 L0");
+        }
+        // 更新后 L0 中的旧值立即失效
+        version.incrementAndGet();
+        dao.update("update user set name = ? where id = ?", "su", 1);
+        Object value = dao.queryOne(Object.class, sql, 1);
+        System.out.println("更新后读到: " + value);
+        if (!"1@v1".equals(value)) {
+            throw new IllegalStateException("更新后读到 L0 中的旧值: " + value);
+        }
+    }
+
+    long epoch() {
+        return epoch.get();
+    }
+
+    /**
+     * 查本线程的 L0 未命中返回 null
+     */
+    Object get(SqlKey key) {
+        Slot slot = local.get().slots[key.hashCode() & mask];
+        if (slot != null && slot.epoch == epoch.get() && slot.key.equals(key)) {
+            hits.increment();
+            return slot.value;
+        }
+        return null;
+    }
+
+    /**
+     * L1 命中后调用 采样统计频率 热点 key 放入本线程的 L0
+     * @param epochBeforeRead 读 L1 之前取得的 epoch
+     */
+    void recordHit(SqlProbe key, Object value, long epochBeforeRead) {
+        Local l = local.get();
+        if ((++l.counter & SAMPLE_MASK) != 0) {
+            return;
+        }
+        if (!sketchLock.tryLock()) {
+            return;
+        }
+        int frequency;
+        try {
+            sketch.increment(key.hashCode());
+            frequency = sketch.frequency(key.hashCode());
+        } finally {
+            sketchLock.unlock();
+        }
+        if (frequency >= hotThreshold) {
+            l.slots[key.hashCode() & mask] = new Slot(key.toKey(), value, epochBeforeRead);
+        }
+    }
+
+    /**
+     * 使所有线程的 L0 失效 需要在 L1 清空之后调用
+     */
+    void invalidateAll() {
+        epoch.incrementAndGet();
+    }
+
+    static final class Local {
+        final Slot[] slots;
+        int counter;
+
+        Local(int size) {
+            this.slots = new Slot[size];
+        }
+    }
+
+    static final class Slot {
+        final SqlPair key;
+        final Object value;
+        final long epoch;
+
+        Slot(SqlPair key, Object value, long epoch) {
+            this.key = key;
+            this.value = value;
+            this.epoch = epoch;
+        }
+    }
+}
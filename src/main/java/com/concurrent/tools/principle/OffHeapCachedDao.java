@@ -0,0 +1,457 @@
+package com.concurrent.tools.principle;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * @program: su-concurrent
+ * @description: 堆外缓存
+ *      问题：
+ *          几个 G 的查询结果放在堆内，老年代很大，GC 停顿时间也跟着变长
+ *      思路：
+ *          1. 值序列化后放到堆外（直接内存 ByteBuffer.allocateDirect），GC 不扫描这部分内存
+ *             堆内只保留一个紧凑的索引 SqlPair -> long 地址（高 32 位是 slab 编号，低 32 位是偏移）
+ *          2. 内存按 slab 分配（与 memcached 相同）：每个 slab 1MB，分给某一个大小级别（64B、128B ... 1MB）后切成等长的块
+ *             值放入能容纳它的最小级别的块中，不会产生外部碎片
+ *          3. 容量按堆外字节数限制，slab 用完后在同一级别内按先进先出淘汰最早放入的块
+ *             块被释放后又分配出去时不重复入队，而是标记一下，轮到它时重新排到队尾（与 CLOCK 的第二次机会类似），
+ *             这样 used 队列中每个块最多出现一次，也不会按旧位置把块的新主人淘汰掉
+ *          4. 序列化方式可插拔（Codec），读时把字节拷贝出来再反序列化（copy-on-read），调用者拿到的是独立的对象
+ *      并发：
+ *          读：用 StampedLock 乐观读把块中的字节拷贝到堆内，验戳成功说明拷贝期间块没有被释放、复用
+ *          写（分配、释放、淘汰）：加 StampedLock 写锁，只包含内存拷贝，不包含查库
+ *          缓存与数据库的一致性沿用 GenericCachedDao2 的读写锁
+ * @author: Su
+ * @create: 2026-10-19 20:30
+ **/
+public class OffHeapCachedDao<T> {
+    private static final int SLAB_SIZE = 1 << 20;
+    private static final int MIN_CHUNK_BITS = 6;
+    private static final int MAX_CHUNK_BITS = 20;
+    // 块头部 4 字节存放数据长度
+    private static final int HEADER = 4;
+    // 块在 used 队列中的状态：不在队列中、在队列中、在队列中但释放后又被分配了
+    private static final byte NOT_QUEUED = 0;
+    private static final byte QUEUED = 1;
+    private static final byte REUSED = 2;
+
+    private final ConcurrentHashMap<SqlPair, Long> index = new ConcurrentHashMap<>();
+    private final StampedLock lock = new StampedLock();
+    private final ReentrantReadWriteLock loadLock = new ReentrantReadWriteLock();
+    private final ByteBuffer[] slabs;
+    // 每个 slab 属于哪个级别 -1 表示未分配
+    private final int[] slabClass;
+    // 每个块的主人 用于淘汰时从索引中删除
+    private final SqlPair[][] owners;
+    // 每个块在 used 队列中的状态 见 allocate 和 evict
+    private final byte[][] queued;
+    private final SizeClass[] classes = new SizeClass[MAX_CHUNK_BITS - MIN_CHUNK_BITS + 1];
+    private int slabsUsed;
+    private final Codec<T> codec;
+    //不带缓存机制的dao
+    private final GenericDao genericDao;
+
+    /**
+     * @param maxBytes 堆外内存上限
+     */
+    public OffHeapCachedDao(GenericDao genericDao, long maxBytes, Codec<T> codec) {
+        this.genericDao = genericDao;
+        this.codec = codec;
+        int slabCount = (int) Math.max(1, maxBytes / SLAB_SIZE);
+        this.slabs = new ByteBuffer[slabCount];
+        this.slabClass = new int[slabCount];
+        this.owners = new SqlPair[slabCount][];
+        this.queued = new byte[slabCount][];
+        for (int i = 0; i < slabCount; i++) {
+            slabClass[i] = -1;
+        }
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = new SizeClass(1 << (MIN_CHUNK_BITS + i));
+        }
+    }
+
+    public static void main(String[] args) {
+        OffHeapCachedDao<String> dao = new OffHeapCachedDao<>(new GenericDao<String>() {
+            @Override
+            public String queryOne(Class<String> beanClass, String sql, Object... params) {
+                StringBuilder sb = new StringBuilder();
+                for (int i = 0; i < 100; i++) {
+                    sb.append("row-").append(params[0]).append(';');
+                }
+                return sb.toString();
+            }
+        }, 4L << 20, new StringCodec());
+        for (int i = 0; i < 20_000; i++) {
+            dao.queryOne(String.class, "select * from user where id = ?", i);
+        }
+        // 4MB 放不下 20000 条 较早的被淘汰
+        System.out.println("条目数: " + dao.size() + ", 堆外占用(KB): " + dao.offHeapBytes() / 1024);
+        String value = dao.queryOne(String.class, "select * from user where id = ?", 19_999);
+        System.out.println(value.substring(0, 30));
+        if (dao.size() == 0 || dao.size() >= 20_000 || dao.offHeapBytes() > 4L << 20) {
+            throw new IllegalStateException("淘汰后超出堆外容量: " + dao.size() + " 条, " + dao.offHeapBytes() + " 字节");
+        }
+        if (value.length() != 100 * "row-19999;".length() || !value.startsWith("row-19999;")) {
+            throw new IllegalStateException("从堆外读回的值被破坏: " + value.substring(0, 30));
+        }
+        // 并发未命中时同一个 key 会被放入多次 旧块被释放后又分配出去 不能在 used 中留下重复的地址
+        OffHeapCachedDao<String> small = new OffHeapCachedDao<>(new GenericDao<String>(), 1L << 20, new StringCodec());
+        String row = value.substring(0, 1000);
+        int chunks = SLAB_SIZE / 1024;
+        small.put(key(0), row);
+        // 再次放入 key0：分配新块 释放的旧块排在空闲队列末尾
+        small.put(key(0), row);
+        // 最后一个 key 拿到的是 key0 释放的旧块
+        for (int i = 1; i < chunks; i++) {
+            small.put(key(i), row);
+        }
+        if (small.queuedChunks() != chunks) {
+            throw new IllegalStateException("used 队列中有重复的地址: " + small.queuedChunks());
+        }
+        // slab 用满 再放入要淘汰最早的块 不能按旧块在队列中的位置淘汰掉它的新主人
+        small.put(key(chunks), row);
+        if (small.get(key(chunks - 1)) == null || small.get(key(0)) != null) {
+            throw new IllegalStateException("按释放前的旧位置淘汰了块的新主人");
+        }
+    }
+
+    private static SqlPair key(int id) {
+        return new SqlPair("select * from user where id = ?", new Object[]{id});
+    }
+
+    public T queryOne(Class<T> beanClass, String sql, Object... params) {
+        SqlProbe probe = SqlProbe.of(sql, params);
+        T value = get(probe);
+        if (value != null) {
+            return value;
+        }
+        SqlPair key = probe.toKey();
+        loadLock.readLock().lock();
+        try {
+            value = get(key);
+            if (value == null) {
+                value = (T) genericDao.queryOne(beanClass, sql, params);
+                if (value != null) {
+                    put(key, value);
+                }
+            }
+            return value;
+        } finally {
+            loadLock.readLock().unlock();
+        }
+    }
+
+    public int update(String sql, Object... params) {
+        loadLock.writeLock().lock();
+        try {
+            int rows = genericDao.update(sql, params);
+            clear();
+            return rows;
+        } finally {
+            loadLock.writeLock().unlock();
+        }
+    }
+
+    public int size() {
+        return index.size();
+    }
+
+    // 各级别 used 队列的长度之和
+    int queuedChunks() {
+        long stamp = lock.readLock();
+        try {
+            int total = 0;
+            for (SizeClass sizeClass : classes) {
+                total += sizeClass.used.size();
+            }
+            return total;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    // 已经分配给各级别的 slab 字节数
+    public long offHeapBytes() {
+        long stamp = lock.readLock();
+        try {
+            return (long) slabsUsed * SLAB_SIZE;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private T get(SqlKey key) {
+        Long address = index.get(key);
+        if (address == null) {
+            return null;
+        }
+        // 乐观读拷贝 验戳失败再加读锁拷贝
+        long stamp = lock.tryOptimisticRead();
+        byte[] bytes = copyOut(address);
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                Long current = index.get(key);
+                if (current == null) {
+                    return null;
+                }
+                bytes = copyOut(current);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return bytes == null ? null : codec.decode(ByteBuffer.wrap(bytes));
+    }
+
+    // 块可能正在被复用 长度不合法时返回 null 由验戳发现
+    private byte[] copyOut(long address) {
+        int slab = (int) (address >>> 32);
+        int offset = (int) address;
+        ByteBuffer buffer = slabs[slab];
+        if (buffer == null) {
+            return null;
+        }
+        int length = buffer.getInt(offset);
+        if (length < 0 || length > SLAB_SIZE - offset - HEADER) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset + HEADER);
+        view.get(bytes);
+        return bytes;
+    }
+
+    private void put(SqlPair key, T value) {
+        byte[] bytes = codec.encode(value);
+        int classIndex = classFor(bytes.length + HEADER);
+        if (classIndex < 0) {
+            // 超过一个 slab 的值不放入缓存
+            return;
+        }
+        long stamp = lock.writeLock();
+        try {
+            long address = allocate(classIndex);
+            if (address < 0) {
+                return;
+            }
+            int slab = (int) (address >>> 32);
+            int offset = (int) address;
+            ByteBuffer view = slabs[slab].duplicate();
+            view.position(offset);
+            view.putInt(bytes.length);
+            view.put(bytes);
+            owners[slab][offset / classes[classIndex].chunkSize] = key;
+            Long old = index.put(key, address);
+            if (old != null) {
+                free(old);
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    private static int classFor(int size) {
+        for (int bits = MIN_CHUNK_BITS; bits <= MAX_CHUNK_BITS; bits++) {
+            if (size <= (1 << bits)) {
+                return bits - MIN_CHUNK_BITS;
+            }
+        }
+        return -1;
+    }
+
+    // 写锁内调用 依次尝试：空闲块 -> 新 slab -> 淘汰本级别最早的块
+    private long allocate(int classIndex) {
+        SizeClass sizeClass = classes[classIndex];
+        if (sizeClass.free.isEmpty() && slabsUsed < slabs.length) {
+            int slab = slabsUsed++;
+            if (slabs[slab] == null) {
+                slabs[slab] = ByteBuffer.allocateDirect(SLAB_SIZE);
+            }
+            slabClass[slab] = classIndex;
+            owners[slab] = new SqlPair[SLAB_SIZE / sizeClass.chunkSize];
+            queued[slab] = new byte[SLAB_SIZE / sizeClass.chunkSize];
+            for (int offset = 0; offset < SLAB_SIZE; offset += sizeClass.chunkSize) {
+                sizeClass.free.addLast(((long) slab << 32) | offset);
+            }
+        }
+        while (sizeClass.free.isEmpty() && !sizeClass.used.isEmpty()) {
+            evict(sizeClass.used.pollFirst());
+        }
+        if (sizeClass.free.isEmpty()) {
+            return -1;
+        }
+        long address = sizeClass.free.pollFirst();
+        int slab = (int) (address >>> 32);
+        int chunk = (int) address / sizeClass.chunkSize;
+        if (queued[slab][chunk] == NOT_QUEUED) {
+            queued[slab][chunk] = QUEUED;
+            sizeClass.used.addLast(address);
+        } else {
+            // 释放前的地址还在队列中 不重复入队 轮到它时再排到队尾
+            queued[slab][chunk] = REUSED;
+        }
+        return address;
+    }
+
+    private void evict(long address) {
+        int slab = (int) (address >>> 32);
+        SizeClass sizeClass = classes[slabClass[slab]];
+        int chunk = (int) address / sizeClass.chunkSize;
+        if (queued[slab][chunk] == REUSED) {
+            // 入队之后被释放又分配给了新主人 按新主人的分配顺序排到队尾
+            queued[slab][chunk] = QUEUED;
+            sizeClass.used.addLast(address);
+            return;
+        }
+        queued[slab][chunk] = NOT_QUEUED;
+        SqlPair owner = owners[slab][chunk];
+        // owner 为 null 说明块已经被释放 在空闲队列中
+        if (owner != null && index.remove(owner, address)) {
+            free(address);
+        }
+    }
+
+    private void free(long address) {
+        int slab = (int) (address >>> 32);
+        SizeClass sizeClass = classes[slabClass[slab]];
+        int chunk = (int) address / sizeClass.chunkSize;
+        if (owners[slab][chunk] != null) {
+            owners[slab][chunk] = null;
+            sizeClass.free.addLast(address);
+        }
+    }
+
+    private void clear() {
+        long stamp = lock.writeLock();
+        try {
+            index.clear();
+            // slab 的直接内存保留复用 只是重新分配级别
+            for (int i = 0; i < slabsUsed; i++) {
+                slabClass[i] = -1;
+                owners[i] = null;
+                queued[i] = null;
+            }
+            slabsUsed = 0;
+            for (SizeClass sizeClass : classes) {
+                sizeClass.free.clear();
+                sizeClass.used.clear();
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * 序列化方式
+     */
+    interface Codec<T> {
+        byte[] encode(T value);
+
+        T decode(ByteBuffer buffer);
+    }
+
+    /**
+     * 默认使用 java 序列化 值需要实现 Serializable
+     */
+    static final class SerializableCodec<T> implements Codec<T> {
+        @Override
+        public byte[] encode(T value) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                out.writeObject(value);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return bytes.toByteArray();
+        }
+
+        @Override
+        public T decode(ByteBuffer buffer) {
+            try (ObjectInputStream in = new ObjectInputStream(
+                    new ByteArrayInputStream(buffer.array(), buffer.position(), buffer.remaining()))) {
+                return (T) in.readObject();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } catch (ClassNotFoundException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    static final class StringCodec implements Codec<String> {
+        @Override
+        public byte[] encode(String value) {
+            return value.getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public String decode(ByteBuffer buffer) {
+            return new String(buffer.array(), buffer.position(), buffer.remaining(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * 大小级别 空闲块和已用块（先进先出）
+     */
+    static final class SizeClass {
+        final int chunkSize;
+        final LongDeque free = new LongDeque();
+        final LongDeque used = new LongDeque();
+
+        SizeClass(int chunkSize) {
+            this.chunkSize = chunkSize;
+        }
+    }
+
+    /**
+     * long 类型的环形队列 避免 ArrayDeque<Long> 的装箱
+     */
+    static final class LongDeque {
+        private long[] elements = new long[16];
+        private int head;
+        private int size;
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        int size() {
+            return size;
+        }
+
+        void addLast(long value) {
+            if (size == elements.length) {
+                long[] grown = new long[elements.length << 1];
+                for (int i = 0; i < size; i++) {
+                    grown[i] = elements[(head + i) & (elements.length - 1)];
+                }
+                elements = grown;
+                head = 0;
+            }
+            elements[(head + size) & (elements.length - 1)] = value;
+            size++;
+        }
+
+        long pollFirst() {
+            long value = elements[head];
+            head = (head + 1) & (elements.length - 1);
+            size--;
+            return value;
+        }
+
+        void clear() {
+            head = 0;
+            size = 0;
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package com.concurrent.tools.principle;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntConsumer;
+
+/**
+ * @program: su-concurrent
+ * @description: 分段锁缓存
+ *      GenericCachedDao2 的问题：
+ *          只有一把读写锁保护一个 HashMap，任何一个 key 未命中都要加全局写锁，查库期间所有读线程都被阻塞
+ *          未命中率一升高，读吞吐就会断崖式下降
+ *      思路（与 JDK7 的 ConcurrentHashMap 分段锁相同）：
+ *          将缓存拆成 N 个段（Segment），每段一个 HashMap + 一把读写锁，根据 SqlPair 的 hash 选择段
+ *          某个 key 未命中时只加它所在段的写锁，其它段的读写完全不受影响
+ *          段数取 2 的幂，用 hash & (n - 1) 代替取模
+ *      注意：
+ *          更新时仍然要锁住所有段并清空全部缓存，按 key 精确失效见后续实现
+ * @author: Su
+ * @create: 2026-10-19 11:05
+ **/
+public class SegmentedCachedDao<T> {
+    private static final String SQL = "select * from user where id = ?";
+    private final Segment<T>[] segments;
+    private final int mask;
+    //不带缓存机制的dao
+    private final GenericDao genericDao;
+
+    public SegmentedCachedDao(GenericDao genericDao) {
+        this(genericDao, 16);
+    }
+
+    public SegmentedCachedDao(GenericDao genericDao, int concurrencyLevel) {
+        // 段数向上取整为 2 的幂
+        int n = 1;
+        while (n < concurrencyLevel) {
+            n <<= 1;
+        }
+        this.segments = new Segment[n];
+        for (int i = 0; i < n; i++) {
+            segments[i] = new Segment<>();
+        }
+        this.mask = n - 1;
+        this.genericDao = genericDao;
+    }
+
+    public static void main(String[] args) {
+        // 未命中率较高时对比单锁缓存和分段缓存
+        LatencyDatabase db = new LatencyDatabase(32, 1000, 0.3, 0, 0, 0, 1000);
+        Pool pool = new Pool(32, () -> new LatencyConnection(db));
+        GenericCachedDao2<Object> single = new GenericCachedDao2<>(new LatencyGenericDao<>(pool));
+        SegmentedCachedDao<Object> segmented = new SegmentedCachedDao<>(new LatencyGenericDao<>(pool));
+        System.out.println("单锁缓存耗时(ms): " + bench((id) -> single.queryOne(Object.class, SQL, id)));
+        long singleQueries = db.queries.sumThenReset();
+        System.out.println("分段缓存耗时(ms): " + bench((id) -> segmented.queryOne(Object.class, SQL, id)));
+        long segmentedQueries = db.queries.sum();
+        // 5 个热点 key 加上 16 * 100 个新 key 每个 key 都只查一次库
+        int keys = 5 + 16 * 100;
+        System.out.println("查库次数 单锁: " + singleQueries + ", 分段: " + segmentedQueries + ", 分段缓存条目: " + segmented.size());
+        if (singleQueries != keys || segmentedQueries != keys || segmented.size() != keys) {
+            throw new IllegalStateException("同一个 key 重复查库或缓存条目丢失");
+        }
+    }
+
+    private static long bench(IntConsumer query) {
+        long start = System.nanoTime();
+        Thread[] threads = new Thread[16];
+        for (int i = 0; i < threads.length; i++) {
+            int base = i * 1000;
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < 200; j++) {
+                    // 一半的请求是热点 key，一半是新 key（必然未命中）
+                    query.accept(j % 2 == 0 ? j % 10 : base + j);
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    // 与 HashMap 相同的扰动，让高位也参与段的选择
+    private Segment<T> segmentFor(SqlKey key) {
+        int h = key.hashCode();
+        return segments[(h ^ (h >>> 16)) & mask];
+    }
+
+    public T queryOne(Class<T> beanClass, String sql, Object... params) {
+        // 命中时用线程私有的 SqlProbe 查找 不创建 key
+        SqlProbe probe = SqlProbe.of(sql, params);
+        Segment<T> segment = segmentFor(probe);
+        // 加段的读锁
+        segment.lock.readLock().lock();
+        try {
+            T value = segment.map.get(probe);
+            if (value != null) {
+                return value;
+            }
+        } finally {
+            segment.lock.readLock().unlock();
+        }
+        SqlPair key = new SqlPair(sql, params);
+        // 只加当前段的写锁 其它段的读写不受影响
+        segment.lock.writeLock().lock();
+        try {
+            // 二次检测 防止重复查询数据库
+            T value = segment.map.get(key);
+            if (value == null) {
+                value = (T) genericDao.queryOne(beanClass, sql, params);
+                segment.map.put(key, value);
+            }
+            return value;
+        } finally {
+            segment.lock.writeLock().unlock();
+        }
+    }
+
+    public int update(String sql, Object... params) {
+        /**
+         * 与 GenericCachedDao2 一样，更新数据库和清缓存要在写锁内完成，否则会出现 GenericCachedDao1 中的旧值回填问题
+         * 按下标顺序依次加各段写锁，所有线程加锁顺序一致，不会死锁
+         */
+        for (Segment<T> segment : segments) {
+            segment.lock.writeLock().lock();
+        }
+        try {
+            int rows = genericDao.update(sql, params);
+            for (Segment<T> segment : segments) {
+                segment.map.clear();
+            }
+            return rows;
+        } finally {
+            for (int i = segments.length - 1; i >= 0; i--) {
+                segments[i].lock.writeLock().unlock();
+            }
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment<T> segment : segments) {
+            segment.lock.readLock().lock();
+            try {
+                size += segment.map.size();
+            } finally {
+                segment.lock.readLock().unlock();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * 段 每段独立加锁
+     */
+    static final class Segment<T> {
+        final HashMap<SqlPair, T> map = new HashMap<>();
+        final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    }
+}
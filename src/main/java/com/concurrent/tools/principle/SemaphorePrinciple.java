@@ -6,6 +6,7 @@ import java.util.Properties;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.Supplier;
 
 /**
  * @program: su-concurrent
@@ -62,13 +63,17 @@ class Pool {
     private Semaphore semaphore;
     // 4. 构造方法初始化
     public Pool(int poolSize) {
+        this(poolSize, MockConnection::new);
+    }
+    // 由调用者决定创建什么样的连接（例如带延迟的 LatencyConnection）
+    public Pool(int poolSize, Supplier<Connection> connectionFactory) {
         this.poolSize = poolSize;
 // 让许可数与资源数一致
         this.semaphore = new Semaphore(poolSize);
         this.connections = new Connection[poolSize];
         this.states = new AtomicIntegerArray(new int[poolSize]);
         for (int i = 0; i < poolSize; i++) {
-            connections[i] = new MockConnection();
+            connections[i] = connectionFactory.get();
         }
     }
     // 5. 借连接
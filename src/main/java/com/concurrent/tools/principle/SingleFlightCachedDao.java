@@ -0,0 +1,148 @@
+package com.concurrent.tools.principle;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * @program: su-concurrent
+ * @description: 按 key 单飞加载的缓存（single flight）
+ *      GenericCachedDao2 的问题：
+ *          未命中时在全局写锁内二次检测再查库，虽然避免了重复查库，但是不同 key 的查库也被串行化了
+ *          冷启动时成千上万个线程都排队在这一把写锁上
+ *      思路：
+ *          缓存里放的不是值，而是值的 Future（与保护性暂停 GuardedObject 的思想一样，一个线程产生结果，其它线程等待结果）
+ *          1. 第一个未命中的线程用 putIfAbsent 放入一个未完成的 Future，成功放入的线程负责查库并完成这个 Future
+ *          2. 同一个 key 的其它线程拿到的是同一个 Future，等待它完成即可，不会重复查库
+ *          3. 不同 key 的 Future 互不相关，查库完全并行
+ *          4. 查库失败（包括 Error）或结果为 null 时移除 Future，下次重新加载，等待的线程收到同样的异常或 null
+ *      一致性：
+ *          查库线程持有读锁（读锁之间不互斥，不影响并行），update 持有写锁，仍然不会出现旧值回填
+ * @author: Su
+ * @create: 2026-10-19 16:30
+ **/
+public class SingleFlightCachedDao<T> {
+    private final ConcurrentHashMap<SqlPair, CompletableFuture<T>> map = new ConcurrentHashMap<>();
+    private final ReentrantReadWriteLock loadLock = new ReentrantReadWriteLock();
+    //不带缓存机制的dao
+    private final GenericDao genericDao;
+
+    public SingleFlightCachedDao(GenericDao genericDao) {
+        this.genericDao = genericDao;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        LatencyDatabase db = new LatencyDatabase(16, 20_000, 0.1, 0, 0, 0, 1000);
+        SingleFlightCachedDao<Object> dao = new SingleFlightCachedDao<>(new LatencyGenericDao<>(db));
+        // 冷启动：100 个线程同时查询同一个 key
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[100];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+                dao.queryOne(Object.class, "select * from user where id = ?", 1);
+            });
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+        // 只查了一次数据库
+        System.out.println(db);
+        if (db.queries.sum() != 1) {
+            throw new IllegalStateException("同一个 key 重复查库: " + db.queries.sum());
+        }
+        // 查库抛出 Error 时 Future 也要完成并移除 否则等待的线程永远阻塞、这个 key 再也加载不了
+        AtomicInteger calls = new AtomicInteger();
+        SingleFlightCachedDao<Object> failing = new SingleFlightCachedDao<>(new GenericDao<Object>() {
+            @Override
+            public Object queryOne(Class<Object> beanClass, String sql, Object... params) {
+                if (calls.incrementAndGet() == 1) {
+                    throw new StackOverflowError("模拟查库时的 Error");
+                }
+                return "su";
+            }
+        });
+        try {
+            failing.queryOne(Object.class, "select * from user where id = ?", 1);
+        } catch (StackOverflowError e) {
+            System.out.println("第一次加载失败: " + e.getMessage());
+        }
+        Object value = failing.queryOne(Object.class, "select * from user where id = ?", 1);
+        System.out.println("重新加载: " + value);
+        if (!"su".equals(value)) {
+            throw new IllegalStateException("失败后没有重新加载: " + value);
+        }
+    }
+
+    public T queryOne(Class<T> beanClass, String sql, Object... params) {
+        // 命中时用线程私有的 SqlProbe 查找 不创建 key
+        CompletableFuture<T> future = map.get(SqlProbe.of(sql, params));
+        if (future == null) {
+            SqlPair key = new SqlPair(sql, params);
+            CompletableFuture<T> created = new CompletableFuture<>();
+            future = map.putIfAbsent(key, created);
+            if (future == null) {
+                // 只有放入成功的线程去查库
+                return load(key, created, beanClass, sql, params);
+            }
+        }
+        return await(future);
+    }
+
+    private T load(SqlPair key, CompletableFuture<T> future, Class<T> beanClass, String sql, Object[] params) {
+        loadLock.readLock().lock();
+        try {
+            T value = (T) genericDao.queryOne(beanClass, sql, params);
+            if (value == null) {
+                // 不缓存 null
+                map.remove(key, future);
+            }
+            future.complete(value);
+            return value;
+        } catch (Throwable e) {
+            map.remove(key, future);
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            loadLock.readLock().unlock();
+        }
+    }
+
+    private T await(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    public int update(String sql, Object... params) {
+        loadLock.writeLock().lock();
+        try {
+            int rows = genericDao.update(sql, params);
+            map.clear();
+            return rows;
+        } finally {
+            loadLock.writeLock().unlock();
+        }
+    }
+
+    public int size() {
+        return map.size();
+    }
+}
@@ -0,0 +1,352 @@
+package com.concurrent.tools.principle;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * @program: su-concurrent
+ * @description: 可以热启动的缓存（内存映射快照）
+ *      问题：
+ *          每次发布后缓存都是空的，所有请求一起打到数据库，要很久才能恢复到正常的命中率
+ *      思路：
+ *          1. 后台线程定期把缓存内容顺序写入快照文件：先写临时文件，写完再原子改名，读写缓存的线程完全不受影响
+ *             （遍历 ConcurrentHashMap 是弱一致的，不需要加锁）
+ *          2. 启动时用 FileChannel.map 把快照映射进来，只解析 key，值保持为文件中的 (偏移, 长度)
+ *             第一次访问某个 key 时才反序列化它的值并替换进 map，启动时间只与 key 的数量有关
+ *          3. 尚未访问过的值在下一次快照时直接拷贝原始字节，不需要反序列化再序列化
+ *      一致性：
+ *          与 GenericCachedDao2 相同，update 持有写锁并清空缓存，同时删除快照文件（否则重启后会读到更新前的旧值）
+ *          快照写到一半时发生了 update，这份快照作废
+ * @author: Su
+ * @create: 2026-10-19 22:20
+ **/
+public class SnapshotCachedDao<T> implements AutoCloseable {
+    private static final int MAGIC = 0x534E4150;
+    // 参数的类型标记 常见类型直接编码 其它类型走 java 序列化
+    private static final byte NULL = 0;
+    private static final byte INT = 1;
+    private static final byte LONG = 2;
+    private static final byte STRING = 3;
+    private static final byte SERIALIZED = 4;
+
+    // 值是 T 或尚未反序列化的 LazyValue
+    private final ConcurrentHashMap<SqlPair, Object> map = new ConcurrentHashMap<>();
+    private final ReentrantReadWriteLock loadLock = new ReentrantReadWriteLock();
+    private final OffHeapCachedDao.Codec<T> codec;
+    private final Path snapshotFile;
+    private final ScheduledExecutorService scheduler;
+    // update 的次数 快照前后不一致说明快照期间发生过 update
+    private volatile long modCount;
+    //不带缓存机制的dao
+    private final GenericDao genericDao;
+
+    public SnapshotCachedDao(GenericDao genericDao, OffHeapCachedDao.Codec<T> codec, Path snapshotFile,
+                             long interval, TimeUnit unit) {
+        this.genericDao = genericDao;
+        this.codec = codec;
+        this.snapshotFile = snapshotFile;
+        load();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "cache-snapshot");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                snapshot();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }, interval, interval, unit);
+    }
+
+    public static void main(String[] args) throws IOException {
+        Path file = Files.createTempFile("cache", ".snapshot");
+        String sql = "select * from user where id = ?";
+        LatencyDatabase db = new LatencyDatabase(16, 200, 0.2, 0, 0, 0, 1000);
+        try (SnapshotCachedDao<String> dao = new SnapshotCachedDao<>(new LatencyGenericDao<>(db),
+                new OffHeapCachedDao.StringCodec(), file, 1, TimeUnit.MINUTES)) {
+            for (int i = 0; i < 10_000; i++) {
+                dao.queryOne(String.class, sql, i);
+            }
+        }
+        System.out.println("快照大小(KB): " + Files.size(file) / 1024);
+
+        // 重启
+        LatencyDatabase restartedDb = new LatencyDatabase(16, 200, 0.2, 0, 0, 0, 1000);
+        long start = System.nanoTime();
+        try (SnapshotCachedDao<String> dao = new SnapshotCachedDao<>(new LatencyGenericDao<>(restartedDb),
+                new OffHeapCachedDao.StringCodec(), file, 1, TimeUnit.MINUTES)) {
+            System.out.println("加载耗时(ms): " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+                    + ", 条目数: " + dao.size());
+            for (int i = 0; i < 10_000; i++) {
+                dao.queryOne(String.class, sql, i);
+            }
+            System.out.println("重启后 10000 次查询的数据库往返次数: " + restartedDb.queries.sum());
+            if (dao.size() != 10_000 || restartedDb.queries.sum() != 0) {
+                throw new IllegalStateException("快照没有完整恢复: " + dao.size() + ", " + restartedDb.queries.sum());
+            }
+            // update 后快照作废 不会在下次重启时读到旧值
+            dao.update("update user set name = ? where id = ?", "su", 1);
+            if (Files.exists(file)) {
+                throw new IllegalStateException("update 后快照仍然存在");
+            }
+        }
+        Files.deleteIfExists(file);
+    }
+
+    public T queryOne(Class<T> beanClass, String sql, Object... params) {
+        // 命中已经反序列化的值时用线程私有的 SqlProbe 查找 不创建 key
+        Object cached = map.get(SqlProbe.of(sql, params));
+        if (cached != null && !(cached instanceof LazyValue)) {
+            return (T) cached;
+        }
+        SqlPair key = new SqlPair(sql, params);
+        T value = resolve(key, cached);
+        if (value != null) {
+            return value;
+        }
+        loadLock.readLock().lock();
+        try {
+            value = resolve(key, map.get(key));
+            if (value == null) {
+                value = (T) genericDao.queryOne(beanClass, sql, params);
+                if (value != null) {
+                    map.put(key, value);
+                }
+            }
+            return value;
+        } finally {
+            loadLock.readLock().unlock();
+        }
+    }
+
+    // 第一次访问快照中的值时反序列化 并替换进 map（被并发替换或删除时 replace 失败 不影响返回值）
+    private T resolve(SqlPair key, Object cached) {
+        if (!(cached instanceof LazyValue)) {
+            return (T) cached;
+        }
+        T value = codec.decode(ByteBuffer.wrap(((LazyValue) cached).bytes()));
+        map.replace(key, cached, value);
+        return value;
+    }
+
+    public int update(String sql, Object... params) {
+        loadLock.writeLock().lock();
+        try {
+            int rows = genericDao.update(sql, params);
+            // 先清空再发布新的 modCount：读到新 modCount 的快照一定遍历不到清空前的条目
+            map.clear();
+            modCount++;
+            Files.deleteIfExists(snapshotFile);
+            return rows;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            loadLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 写一份快照 文件格式：
+     *     MAGIC | (key 长度 | key | 值长度 | 值)* | -1
+     *     key = sql | 参数个数 | (类型标记 | 参数)*
+     */
+    public void snapshot() {
+        long expectedModCount = modCount;
+        Path tmp = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+                out.writeInt(MAGIC);
+                ByteArrayOutputStream keyBytes = new ByteArrayOutputStream();
+                DataOutputStream keyOut = new DataOutputStream(keyBytes);
+                for (Map.Entry<SqlPair, Object> e : map.entrySet()) {
+                    keyBytes.reset();
+                    writeKey(keyOut, e.getKey());
+                    Object cached = e.getValue();
+                    byte[] value = cached instanceof LazyValue ? ((LazyValue) cached).bytes() : codec.encode((T) cached);
+                    out.writeInt(keyBytes.size());
+                    keyBytes.writeTo(out);
+                    out.writeInt(value.length);
+                    out.write(value);
+                }
+                out.writeInt(-1);
+            }
+            // 持有读锁改名 与 update 互斥
+            loadLock.readLock().lock();
+            try {
+                if (modCount != expectedModCount) {
+                    Files.deleteIfExists(tmp);
+                    return;
+                }
+                Files.move(tmp, snapshotFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                loadLock.readLock().unlock();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // 映射快照文件 只解析 key；文件损坏或不完整时放弃已解析的部分 从空缓存开始
+    private void load() {
+        if (!Files.exists(snapshotFile)) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(snapshotFile, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < 8 || size > Integer.MAX_VALUE) {
+                return;
+            }
+            // 映射在 channel 关闭后仍然有效
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buffer.getInt() != MAGIC) {
+                return;
+            }
+            while (true) {
+                int keyLength = buffer.getInt();
+                if (keyLength < 0) {
+                    break;
+                }
+                int keyEnd = buffer.position() + keyLength;
+                SqlPair key = readKey(buffer);
+                buffer.position(keyEnd);
+                int valueLength = buffer.getInt();
+                map.put(key, new LazyValue(buffer, buffer.position(), valueLength));
+                buffer.position(buffer.position() + valueLength);
+            }
+        } catch (IOException | RuntimeException e) {
+            map.clear();
+        }
+    }
+
+    private static void writeKey(DataOutputStream out, SqlPair key) throws IOException {
+        byte[] sql = key.getSql().getBytes(StandardCharsets.UTF_8);
+        out.writeInt(sql.length);
+        out.write(sql);
+        Object[] params = key.getParams();
+        out.writeInt(params.length);
+        for (Object param : params) {
+            if (param == null) {
+                out.writeByte(NULL);
+            } else if (param instanceof Integer) {
+                out.writeByte(INT);
+                out.writeInt((Integer) param);
+            } else if (param instanceof Long) {
+                out.writeByte(LONG);
+                out.writeLong((Long) param);
+            } else if (param instanceof String) {
+                byte[] bytes = ((String) param).getBytes(StandardCharsets.UTF_8);
+                out.writeByte(STRING);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            } else {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                try (ObjectOutputStream objectOut = new ObjectOutputStream(bytes)) {
+                    objectOut.writeObject(param);
+                }
+                out.writeByte(SERIALIZED);
+                out.writeInt(bytes.size());
+                bytes.writeTo(out);
+            }
+        }
+    }
+
+    private static SqlPair readKey(ByteBuffer buffer) throws IOException {
+        byte[] sqlBytes = new byte[buffer.getInt()];
+        buffer.get(sqlBytes);
+        String sql = new String(sqlBytes, StandardCharsets.UTF_8);
+        Object[] params = new Object[buffer.getInt()];
+        for (int i = 0; i < params.length; i++) {
+            byte type = buffer.get();
+            switch (type) {
+                case NULL:
+                    break;
+                case INT:
+                    params[i] = buffer.getInt();
+                    break;
+                case LONG:
+                    params[i] = buffer.getLong();
+                    break;
+                case STRING: {
+                    byte[] bytes = new byte[buffer.getInt()];
+                    buffer.get(bytes);
+                    params[i] = new String(bytes, StandardCharsets.UTF_8);
+                    break;
+                }
+                default: {
+                    byte[] bytes = new byte[buffer.getInt()];
+                    buffer.get(bytes);
+                    try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+                        params[i] = in.readObject();
+                    } catch (ClassNotFoundException e) {
+                        throw new IOException(e);
+                    }
+                }
+            }
+        }
+        return new SqlPair(sql, params);
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    /**
+     * 关闭时再写一份快照
+     */
+    @Override
+    public void close() {
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        snapshot();
+    }
+
+    /**
+     * 快照中尚未反序列化的值 指向映射区域中的一段
+     */
+    static final class LazyValue {
+        private final ByteBuffer buffer;
+        private final int offset;
+        private final int length;
+
+        LazyValue(ByteBuffer buffer, int offset, int length) {
+            this.buffer = buffer;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        // 用 duplicate 得到独立的 position 多个线程可以同时读同一个映射
+        byte[] bytes() {
+            ByteBuffer view = buffer.duplicate();
+            view.position(offset);
+            byte[] bytes = new byte[length];
+            view.get(bytes);
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.concurrent.tools.principle;
+
+import java.util.Objects;
+
+/**
+ * @program: su-concurrent
+ * @description: 缓存 key 的公共部分：hashCode 和 equals 只依赖 sql 和参数，与具体子类无关
+ *     这样可变的查询 key（SqlProbe）和不可变的 SqlPair 可以互相比较，用 SqlProbe 去 map 中查找，命中时不用创建 SqlPair
+ * @author: Su
+ * @create: 2026-10-19 17:05
+ **/
+abstract class SqlKey {
+    // 与 GenericCachedDao1 中的 SqlPair 一样允许 params 为 null 当作没有参数
+    static final Object[] NO_PARAMS = new Object[0];
+
+    abstract String sql();
+
+    abstract int paramCount();
+
+    abstract Object param(int i);
+
+    @Override
+    public final boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof SqlKey)) {
+            return false;
+        }
+        SqlKey other = (SqlKey) o;
+        int n = paramCount();
+        if (hashCode() != other.hashCode() || n != other.paramCount()) {
+            return false;
+        }
+        // sql 模板一般是字符串常量（常量本身是驻留的） 绝大多数情况下 == 就能判断
+        if (sql() != other.sql() && !sql().equals(other.sql())) {
+            return false;
+        }
+        for (int i = 0; i < n; i++) {
+            if (!Objects.equals(param(i), other.param(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // 与原来 Objects.hash(sql) * 31 + Arrays.hashCode(params) 的结果相同 但不创建可变参数数组
+    static int hash(String sql, int paramsHash) {
+        return 31 * (31 + sql.hashCode()) + paramsHash;
+    }
+
+    static int mix(int paramsHash, Object param) {
+        return 31 * paramsHash + (param == null ? 0 : param.hashCode());
+    }
+}
@@ -0,0 +1,60 @@
+package com.concurrent.tools.principle;
+
+import java.util.Arrays;
+
+/**
+ * @program: su-concurrent
+ * @description: 后续各种缓存实现共用的 key，与 GenericCachedDao1 中的内部类 SqlPair 作用相同
+ *     作为 key 保证其是不可变的
+ *     hash 在构造时算好，比较时先比 sql 的引用
+ * @author: Su
+ * @create: 2026-10-19 11:05
+ **/
+final class SqlPair extends SqlKey {
+    private final String sql;
+    private final Object[] params;
+    private final int hash;
+
+    public SqlPair(String sql, Object[] params) {
+        this.sql = sql;
+        this.params = params == null ? NO_PARAMS : params;
+        int paramsHash = 1;
+        for (Object param : this.params) {
+            paramsHash = mix(paramsHash, param);
+        }
+        this.hash = hash(sql, paramsHash);
+    }
+
+    public String getSql() {
+        return sql;
+    }
+
+    public Object[] getParams() {
+        return params;
+    }
+
+    @Override
+    String sql() {
+        return sql;
+    }
+
+    @Override
+    int paramCount() {
+        return params.length;
+    }
+
+    @Override
+    Object param(int i) {
+        return params[i];
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return sql + Arrays.toString(params);
+    }
+}
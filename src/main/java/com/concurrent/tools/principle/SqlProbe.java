@@ -0,0 +1,99 @@
+package com.concurrent.tools.principle;
+
+/**
+ * @program: su-concurrent
+ * @description: 可复用的查询 key 每个线程一个（ThreadLocal）
+ *     命中路径：SqlProbe.of(sql, id) 填入 sql 和参数，直接拿它去 map.get，不分配任何对象
+ *     未命中要放入缓存时：toKey() 才创建不可变的 SqlPair
+ *     注意：只能用来查找，不能放入 map；下一次 of 调用之前要用完
+ * @author: Su
+ * @create: 2026-10-19 17:05
+ **/
+final class SqlProbe extends SqlKey {
+    private static final ThreadLocal<SqlProbe> PROBE = ThreadLocal.withInitial(SqlProbe::new);
+    private String sql;
+    private Object p0;
+    private Object p1;
+    // 超过两个参数时使用
+    private Object[] params;
+    private int count;
+    private int hash;
+
+    private SqlProbe() {
+    }
+
+    static SqlProbe of(String sql, Object p0) {
+        SqlProbe probe = PROBE.get();
+        probe.sql = sql;
+        probe.p0 = p0;
+        probe.p1 = null;
+        probe.params = null;
+        probe.count = 1;
+        probe.hash = hash(sql, mix(1, p0));
+        return probe;
+    }
+
+    static SqlProbe of(String sql, Object p0, Object p1) {
+        SqlProbe probe = PROBE.get();
+        probe.sql = sql;
+        probe.p0 = p0;
+        probe.p1 = p1;
+        probe.params = null;
+        probe.count = 2;
+        probe.hash = hash(sql, mix(mix(1, p0), p1));
+        return probe;
+    }
+
+    static SqlProbe of(String sql, Object[] params) {
+        if (params == null) {
+            params = NO_PARAMS;
+        }
+        SqlProbe probe = PROBE.get();
+        probe.sql = sql;
+        probe.p0 = null;
+        probe.p1 = null;
+        probe.params = params;
+        probe.count = params.length;
+        int paramsHash = 1;
+        for (Object param : params) {
+            paramsHash = mix(paramsHash, param);
+        }
+        probe.hash = hash(sql, paramsHash);
+        return probe;
+    }
+
+    // 生成不可变的 key 用于放入缓存
+    SqlPair toKey() {
+        return new SqlPair(sql, toParams());
+    }
+
+    Object[] toParams() {
+        if (params != null) {
+            return params;
+        }
+        return count == 1 ? new Object[]{p0} : new Object[]{p0, p1};
+    }
+
+    @Override
+    String sql() {
+        return sql;
+    }
+
+    @Override
+    int paramCount() {
+        return count;
+    }
+
+    @Override
+    Object param(int i) {
+        if (params != null) {
+            return params[i];
+        }
+        return i == 0 ? p0 : p1;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+}
@@ -0,0 +1,122 @@
+package com.concurrent.tools.principle;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * @program: su-concurrent
+ * @description: 轻量的 sql 表名解析
+ *     识别 from / join / update / into / delete from 后面的表名，from 后面逗号分隔的多张表也能识别
+ *     结果按 sql 模板缓存，同一模板只解析一次；缓存最多 MAX_CACHED 个模板，
+ *     满了之后新模板每次都重新解析（拼接了参数值的 sql 每条都不同，不能让缓存无限增长）
+ * @author: Su
+ * @create: 2026-10-19 13:20
+ **/
+final class SqlTables {
+    private static final int MAX_CACHED = 1024;
+    private static final ConcurrentHashMap<String, Set<String>> CACHE = new ConcurrentHashMap<>();
+    private static final Set<String> KEYWORDS = new HashSet<>(Arrays.asList(
+            "select", "from", "join", "inner", "left", "right", "outer", "cross", "on", "where", "group",
+            "order", "by", "having", "limit", "union", "set", "values", "into", "update", "delete", "insert", "as"));
+
+    private SqlTables() {
+    }
+
+    public static Set<String> of(String sql) {
+        Set<String> tables = CACHE.get(sql);
+        if (tables != null) {
+            return tables;
+        }
+        tables = parse(sql);
+        // 并发时可能略超过上限 不影响正确性
+        if (CACHE.size() < MAX_CACHED) {
+            CACHE.putIfAbsent(sql, tables);
+        }
+        return tables;
+    }
+
+    static int cachedTemplates() {
+        return CACHE.size();
+    }
+
+    static Set<String> parse(String sql) {
+        List<String> tokens = tokenize(sql);
+        Set<String> tables = new HashSet<>();
+        for (int i = 0; i < tokens.size(); i++) {
+            String token = tokens.get(i);
+            if (token.equals("join") || token.equals("update") || token.equals("into")) {
+                addTable(tokens, i + 1, tables);
+            } else if (token.equals("from")) {
+                // from a x, b y 逗号分隔的多张表
+                int j = i + 1;
+                while (j < tokens.size() && addTable(tokens, j, tables)) {
+                    j++;
+                    // 跳过别名
+                    if (j < tokens.size() && tokens.get(j).equals("as")) {
+                        j++;
+                    }
+                    if (j < tokens.size() && !tokens.get(j).equals(",") && !KEYWORDS.contains(tokens.get(j))) {
+                        j++;
+                    }
+                    if (j < tokens.size() && tokens.get(j).equals(",")) {
+                        j++;
+                    } else {
+                        break;
+                    }
+                }
+            }
+        }
+        return Collections.unmodifiableSet(tables);
+    }
+
+    private static boolean addTable(List<String> tokens, int i, Set<String> tables) {
+        if (i >= tokens.size()) {
+            return false;
+        }
+        String token = tokens.get(i);
+        if (token.equals(",") || KEYWORDS.contains(token)) {
+            return false;
+        }
+        tables.add(token);
+        return true;
+    }
+
+    // 分词：标识符（去掉 ` 和 " 引号）和逗号，字符串常量、括号、运算符都跳过
+    private static List<String> tokenize(String sql) {
+        List<String> tokens = new ArrayList<>();
+        int i = 0;
+        int n = sql.length();
+        while (i < n) {
+            char c = sql.charAt(i);
+            if (c == '\'') {
+                i = sql.indexOf('\'', i + 1);
+                i = i < 0 ? n : i + 1;
+            } else if (c == ',') {
+                tokens.add(",");
+                i++;
+            } else if (isIdentifierPart(c)) {
+                StringBuilder sb = new StringBuilder();
+                while (i < n && isIdentifierPart(sql.charAt(i))) {
+                    char ch = sql.charAt(i++);
+                    if (ch != '`' && ch != '"') {
+                        sb.append(ch);
+                    }
+                }
+                tokens.add(sb.toString().toLowerCase(Locale.ROOT));
+            } else {
+                i++;
+            }
+        }
+        return tokens;
+    }
+
+    private static boolean isIdentifierPart(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '.' || c == '`' || c == '"';
+    }
+}
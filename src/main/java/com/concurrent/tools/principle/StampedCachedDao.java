@@ -0,0 +1,231 @@
+package com.concurrent.tools.principle;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.IntConsumer;
+
+/**
+ * @program: su-concurrent
+ * @description: 乐观读的缓存
+ *      GenericCachedDao2 的问题：
+ *          命中时也要加读锁，读锁要 cas 修改共享的读计数，多核下这个缓存行在各个核之间来回传递，读线程越多越慢
+ *      思路（见 StampedLockPrinciple 的 DataContainerStamped）：
+ *          命中路径用 tryOptimisticRead 拿戳 -> 查表 -> validate 验戳，整个过程只有读操作，没有任何共享写
+ *          验戳失败（期间有写操作）才升级为读锁重新查
+ *      注意：
+ *          乐观读期间写线程可能正在修改数据，读到的内容可能是乱的，所以不能直接用 HashMap（并发修改时内部链表、红黑树的状态不可控）
+ *          这里用开放寻址的数组做哈希表：
+ *              1. key 是不可变的 SqlPair，读到的 key 要么是 null 要么是完整的对象
+ *              2. 探测次数最多为数组长度，不会死循环
+ *              3. 扩容和清空都是换一个新数组，旧数组不再修改
+ *          查库仍然不放在 StampedLock 的写锁中（否则查库期间所有乐观读都会验戳失败），一致性沿用 GenericCachedDao2 的读写锁
+ *      命中路径不分配对象：
+ *          用线程私有的 SqlProbe 查找，未命中才创建 SqlPair；一个、两个参数的查询有单独的重载，连可变参数数组都不用创建
+ *          （基本类型参数装箱仍会分配，-128~127 的 Integer 等有缓存）
+ * @author: Su
+ * @create: 2026-10-19 17:05
+ **/
+public class StampedCachedDao<T> {
+    private final StampedLock lock = new StampedLock();
+    private final ReentrantReadWriteLock loadLock = new ReentrantReadWriteLock();
+    // 偶数下标放 key 奇数下标放 value
+    private Object[] table = new Object[2 * 16];
+    private int size;
+    //不带缓存机制的dao
+    private final GenericDao genericDao;
+
+    public StampedCachedDao(GenericDao genericDao) {
+        this.genericDao = genericDao;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        AtomicInteger queries = new AtomicInteger();
+        GenericDao<Object> db = new GenericDao<Object>() {
+            @Override
+            public Object queryOne(Class<Object> beanClass, String sql, Object... params) {
+                queries.incrementAndGet();
+                return params[0];
+            }
+        };
+        GenericCachedDao2<Object> rw = new GenericCachedDao2<>(db);
+        StampedCachedDao<Object> stamped = new StampedCachedDao<>(db);
+        int threads = Runtime.getRuntime().availableProcessors();
+        System.out.println("读写锁缓存耗时(ms): " + bench(threads, i -> rw.queryOne(Object.class, "select ?", i)));
+        System.out.println("乐观读缓存耗时(ms): " + bench(threads, i -> stamped.queryOne(Object.class, "select ?", i)));
+        // 64 个 key 两个缓存各查一次库 乐观读命中的值必须是查出来的那个
+        System.out.println("查库次数: " + queries.get() + ", 乐观读缓存条目数: " + stamped.size());
+        if (queries.get() != 2 * 64 || stamped.size() != 64
+                || !Integer.valueOf(7).equals(stamped.queryOne(Object.class, "select ?", 7))) {
+            throw new IllegalStateException("重复查库或者乐观读读到了错误的值");
+        }
+        stamped.update("update user set name = ?", "su");
+        if (stamped.size() != 0) {
+            throw new IllegalStateException("update 后缓存没有清空: " + stamped.size());
+        }
+    }
+
+    private static long bench(int threads, IntConsumer query) throws InterruptedException {
+        Thread[] ts = new Thread[threads];
+        long start = System.nanoTime();
+        for (int i = 0; i < threads; i++) {
+            ts[i] = new Thread(() -> {
+                for (int j = 0; j < 200_000; j++) {
+                    query.accept(j & 63);
+                }
+            });
+            ts[i].start();
+        }
+        for (Thread t : ts) {
+            t.join();
+        }
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    public T queryOne(Class<T> beanClass, String sql, Object param) {
+        SqlProbe probe = SqlProbe.of(sql, param);
+        T value = get(probe);
+        return value != null ? value : load(beanClass, probe.toKey());
+    }
+
+    public T queryOne(Class<T> beanClass, String sql, Object p0, Object p1) {
+        SqlProbe probe = SqlProbe.of(sql, p0, p1);
+        T value = get(probe);
+        return value != null ? value : load(beanClass, probe.toKey());
+    }
+
+    public T queryOne(Class<T> beanClass, String sql, Object... params) {
+        SqlProbe probe = SqlProbe.of(sql, params);
+        T value = get(probe);
+        return value != null ? value : load(beanClass, probe.toKey());
+    }
+
+    private T load(Class<T> beanClass, SqlPair key) {
+        String sql = key.getSql();
+        Object[] params = key.getParams();
+        loadLock.readLock().lock();
+        try {
+            T value = get(key);
+            if (value == null) {
+                value = (T) genericDao.queryOne(beanClass, sql, params);
+                if (value != null) {
+                    put(key, value);
+                }
+            }
+            return value;
+        } finally {
+            loadLock.readLock().unlock();
+        }
+    }
+
+    public int update(String sql, Object... params) {
+        loadLock.writeLock().lock();
+        try {
+            int rows = genericDao.update(sql, params);
+            long stamp = lock.writeLock();
+            try {
+                table = new Object[2 * 16];
+                size = 0;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+            return rows;
+        } finally {
+            loadLock.writeLock().unlock();
+        }
+    }
+
+    private T get(SqlKey key) {
+        // 乐观读 没有加锁
+        long stamp = lock.tryOptimisticRead();
+        Object[] tab = table;
+        T value = lookup(tab, key);
+        if (lock.validate(stamp)) {
+            return value;
+        }
+        // 锁升级 - 读锁
+        stamp = lock.readLock();
+        try {
+            return lookup(table, key);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    // 线性探测 最多探测整个数组
+    private T lookup(Object[] tab, SqlKey key) {
+        int capacity = tab.length >>> 1;
+        int mask = capacity - 1;
+        int i = spread(key.hashCode()) & mask;
+        for (int probes = 0; probes < capacity; probes++) {
+            Object k = tab[i << 1];
+            if (k == null) {
+                return null;
+            }
+            if (k == key || k.equals(key)) {
+                return (T) tab[(i << 1) + 1];
+            }
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    private void put(SqlPair key, T value) {
+        long stamp = lock.writeLock();
+        try {
+            if (size + 1 > (table.length >>> 2)) {
+                resize();
+            }
+            if (insert(table, key, value)) {
+                size++;
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    // 装载因子超过 0.5 扩容为 2 倍 新数组填好后再替换引用
+    private void resize() {
+        Object[] old = table;
+        Object[] tab = new Object[old.length << 1];
+        for (int i = 0; i < old.length; i += 2) {
+            if (old[i] != null) {
+                insert(tab, (SqlPair) old[i], old[i + 1]);
+            }
+        }
+        table = tab;
+    }
+
+    private static boolean insert(Object[] tab, SqlPair key, Object value) {
+        int mask = (tab.length >>> 1) - 1;
+        int i = spread(key.hashCode()) & mask;
+        while (true) {
+            Object k = tab[i << 1];
+            if (k == null) {
+                // 先写 value 再写 key 乐观读看到 key 时 value 大概率已经可见 看不到也会被验戳发现
+                tab[(i << 1) + 1] = value;
+                tab[i << 1] = key;
+                return true;
+            }
+            if (k.equals(key)) {
+                tab[(i << 1) + 1] = value;
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    private static int spread(int h) {
+        return h ^ (h >>> 16);
+    }
+
+    public int size() {
+        long stamp = lock.readLock();
+        try {
+            return size;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package com.concurrent.tools.principle;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * @program: su-concurrent
+ * @description: 按表精确失效的缓存
+ *      GenericCachedDao2 的问题：
+ *          update 直接 map.clear()，任何一张表的一次写入都会清空整个缓存，写入高峰期命中率几乎为 0
+ *      思路：
+ *          1. 缓存的每个条目都打上它读取的表名标签（用 SqlTables 从 sql 中解析，也可以由调用者显式指定）
+ *          2. 维护 表名 -> 条目集合 的反向索引，update 只失效受影响表上的条目
+ *             条目记录自己的标签，失效时把 key 从它所有表的索引中删掉，依赖多张表的条目不会残留在其它表的索引中
+ *          3. 一致性仍然靠读写锁保证，但锁的粒度从整个缓存缩小到每张表：
+ *              查库并回填缓存时加相关表的读锁，更新数据库并失效缓存时加相关表的写锁
+ *              这样就不会出现 GenericCachedDao1 中"更新前查出的旧值在失效之后才放入缓存"的问题
+ *          4. 多张表的锁按表名排序后依次加锁，避免死锁
+ *          5. 解析不出表名时不知道依赖或影响了哪些条目：这样的查询不放入缓存，这样的更新失效全部条目
+ *             全部失效要挡住所有的查库回填，所以还有一把全局读写锁：查库回填、按表更新持有读锁，全部失效持有写锁
+ *      注意：
+ *          命中时不加锁，直接读 ConcurrentHashMap
+ *          SqlTables 只是轻量解析（from/join/update/into/delete from），复杂 sql 请用显式标签
+ * @author: Su
+ * @create: 2026-10-19 13:20
+ **/
+public class TaggedCachedDao<T> {
+    private final ConcurrentHashMap<SqlPair, Tagged<T>> map = new ConcurrentHashMap<>();
+    // 反向索引 表名 -> 读取了该表的 key
+    private final ConcurrentHashMap<String, Set<SqlPair>> tagIndex = new ConcurrentHashMap<>();
+    // 每张表一把读写锁
+    private final ConcurrentHashMap<String, ReentrantReadWriteLock> tableLocks = new ConcurrentHashMap<>();
+    // 全部失效时持有写锁 先于表锁获取
+    private final ReentrantReadWriteLock allLock = new ReentrantReadWriteLock();
+    //不带缓存机制的dao
+    private final GenericDao genericDao;
+    // 多节点部署时 把本节点的更新广播给其它节点
+    private volatile InvalidationBus invalidationBus;
+
+    public TaggedCachedDao(GenericDao genericDao) {
+        this.genericDao = genericDao;
+    }
+
+    public void setInvalidationBus(InvalidationBus invalidationBus) {
+        this.invalidationBus = invalidationBus;
+    }
+
+    public static void main(String[] args) {
+        TaggedCachedDao<Object> dao = new TaggedCachedDao<>(new GenericDao<Object>() {
+            @Override
+            public Object queryOne(Class<Object> beanClass, String sql, Object... params) {
+                return sql + Arrays.toString(params);
+            }
+        });
+        dao.queryOne(Object.class, "select * from user where id = ?", 1);
+        dao.queryOne(Object.class, "select o.* from orders o join user u on o.uid = u.id where u.id = ?", 1);
+        dao.queryOne(Object.class, "select * from product where id = ?", 1);
+        // 解析不出表名 不放入缓存
+        dao.queryOne(Object.class, "select now()");
+        System.out.println("更新前缓存条目数: " + dao.size());
+        // 只会失效 user 表相关的两个条目，product 表的条目保留
+        dao.update("update user set name = ? where id = ?", "su", 1);
+        System.out.println("更新后缓存条目数: " + dao.size());
+        if (dao.size() != 1) {
+            throw new IllegalStateException("按表失效的条目数不对: " + dao.size());
+        }
+        // orders 表的索引中不能残留已经失效的 join 查询
+        if (dao.indexedKeys() != 1) {
+            throw new IllegalStateException("失效的条目残留在其它表的索引中: " + dao.indexedKeys());
+        }
+        // 参数值直接拼进 sql 时每条 sql 都不同 表名解析的缓存不能无限增长
+        for (int i = 0; i < 10_000; i++) {
+            SqlTables.of("select * from user where id = " + i);
+        }
+        if (SqlTables.cachedTemplates() > 2_000) {
+            throw new IllegalStateException("表名解析的缓存没有上限: " + SqlTables.cachedTemplates());
+        }
+        // 解析不出表名的更新 失效全部条目
+        dao.update("call refresh_prices()");
+        System.out.println("无法解析的更新后缓存条目数: " + dao.size());
+        if (dao.size() != 0) {
+            throw new IllegalStateException("无法解析的更新没有失效全部条目: " + dao.size());
+        }
+    }
+
+    public T queryOne(Class<T> beanClass, String sql, Object... params) {
+        return queryOne(beanClass, SqlTables.of(sql), sql, params);
+    }
+
+    /**
+     * 显式指定该查询依赖的表
+     */
+    public T queryOne(Class<T> beanClass, Set<String> tables, String sql, Object... params) {
+        if (tables.isEmpty()) {
+            // 没有标签的条目无法按表失效 不缓存
+            return (T) genericDao.queryOne(beanClass, sql, params);
+        }
+        // 命中时用线程私有的 SqlProbe 查找 不创建 key
+        Tagged<T> entry = map.get(SqlProbe.of(sql, params));
+        if (entry != null) {
+            return entry.value;
+        }
+        SqlPair key = new SqlPair(sql, params);
+        List<ReentrantReadWriteLock> locks = locksFor(tables);
+        allLock.readLock().lock();
+        for (ReentrantReadWriteLock lock : locks) {
+            lock.readLock().lock();
+        }
+        try {
+            // 二次检测 加锁期间可能已被其它线程放入
+            entry = map.get(key);
+            if (entry != null) {
+                return entry.value;
+            }
+            T value = (T) genericDao.queryOne(beanClass, sql, params);
+            if (value != null) {
+                // 先登记索引再放入缓存 保证失效时一定能找到该条目
+                for (String table : tables) {
+                    tagIndex.computeIfAbsent(table, t -> ConcurrentHashMap.newKeySet()).add(key);
+                }
+                map.put(key, new Tagged<>(value, tables));
+            }
+            return value;
+        } finally {
+            unlockRead(locks);
+            allLock.readLock().unlock();
+        }
+    }
+
+    public int update(String sql, Object... params) {
+        return update(SqlTables.of(sql), sql, params);
+    }
+
+    /**
+     * 显式指定该更新影响的表 为空时失效全部条目
+     */
+    public int update(Set<String> tables, String sql, Object... params) {
+        if (tables.isEmpty()) {
+            allLock.writeLock().lock();
+            try {
+                int rows = genericDao.update(sql, params);
+                clear();
+                publish(tables);
+                return rows;
+            } finally {
+                allLock.writeLock().unlock();
+            }
+        }
+        List<ReentrantReadWriteLock> locks = locksFor(tables);
+        allLock.readLock().lock();
+        for (ReentrantReadWriteLock lock : locks) {
+            lock.writeLock().lock();
+        }
+        try {
+            int rows = genericDao.update(sql, params);
+            invalidateTables(tables);
+            publish(tables);
+            return rows;
+        } finally {
+            unlockWrite(locks);
+            allLock.readLock().unlock();
+        }
+    }
+
+    // 空集合由 InvalidationBus 广播为全部失效
+    private void publish(Set<String> tables) {
+        InvalidationBus bus = invalidationBus;
+        if (bus != null) {
+            bus.publish(tables);
+        }
+    }
+
+    /**
+     * 其它节点更新了这些表 只失效本地缓存 不查库
+     */
+    public void invalidate(Set<String> tables) {
+        if (tables.isEmpty()) {
+            invalidateAll();
+            return;
+        }
+        List<ReentrantReadWriteLock> locks = locksFor(tables);
+        allLock.readLock().lock();
+        for (ReentrantReadWriteLock lock : locks) {
+            lock.writeLock().lock();
+        }
+        try {
+            invalidateTables(tables);
+        } finally {
+            unlockWrite(locks);
+            allLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 清空本地缓存 用于无法确定受影响表的情况（例如丢失的失效消息补不回来）
+     */
+    public void invalidateAll() {
+        allLock.writeLock().lock();
+        try {
+            clear();
+        } finally {
+            allLock.writeLock().unlock();
+        }
+    }
+
+    // 持有 allLock 的写锁调用
+    private void clear() {
+        tagIndex.clear();
+        map.clear();
+    }
+
+    // 失效这些表上的所有条目 条目依赖的其它表的索引中也要删掉它的 key 否则会一直残留
+    // 持有 tables 的写锁调用 同一个 key 的回填要先拿到这些表的读锁 所以删除期间不会被重新登记
+    private void invalidateTables(Set<String> tables) {
+        for (String table : tables) {
+            Set<SqlPair> keys = tagIndex.remove(table);
+            if (keys == null) {
+                continue;
+            }
+            for (SqlPair key : keys) {
+                Tagged<T> entry = map.remove(key);
+                if (entry == null) {
+                    continue;
+                }
+                for (String other : entry.tables) {
+                    Set<SqlPair> otherKeys = tagIndex.get(other);
+                    if (otherKeys != null) {
+                        otherKeys.remove(key);
+                    }
+                }
+            }
+        }
+    }
+
+    // 按表名排序后取锁 所有线程的加锁顺序一致
+    private List<ReentrantReadWriteLock> locksFor(Set<String> tables) {
+        List<ReentrantReadWriteLock> locks = new ArrayList<>(tables.size());
+        for (String table : new TreeSet<>(tables)) {
+            locks.add(tableLocks.computeIfAbsent(table, t -> new ReentrantReadWriteLock()));
+        }
+        return locks;
+    }
+
+    private static void unlockRead(List<ReentrantReadWriteLock> locks) {
+        for (int i = locks.size() - 1; i >= 0; i--) {
+            locks.get(i).readLock().unlock();
+        }
+    }
+
+    private static void unlockWrite(List<ReentrantReadWriteLock> locks) {
+        for (int i = locks.size() - 1; i >= 0; i--) {
+            locks.get(i).writeLock().unlock();
+        }
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    // 反向索引中登记的 key 总数
+    int indexedKeys() {
+        int total = 0;
+        for (Set<SqlPair> keys : tagIndex.values()) {
+            total += keys.size();
+        }
+        return total;
+    }
+
+    static final class Tagged<T> {
+        final T value;
+        // 条目依赖的表 失效时用来清理其它表的索引
+        final Set<String> tables;
+
+        Tagged(T value, Set<String> tables) {
+            this.value = value;
+            this.tables = tables;
+        }
+    }
+}
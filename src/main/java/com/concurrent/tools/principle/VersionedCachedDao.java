@@ -0,0 +1,210 @@
+package com.concurrent.tools.principle;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @program: su-concurrent
+ * @description: 乐观锁实现：用 CAS 去更新（CachedDao 注释中提到的另一种方案）
+ *      GenericCachedDao1 中的问题：先更新数据库再清缓存时，若查询线程在更新前查出旧值、在清缓存之后才放入缓存，旧值就会一直留在缓存中
+ *      GenericCachedDao2 用读写锁解决，这里不加任何锁，而是给缓存条目加版本号（与 AtomicStampedReference 解决 ABA 问题的思路类似）
+ *      思路：
+ *          1. 每张表一个版本号（AtomicLong），key 的版本号 = 全局版本号 + 它读取的所有表的版本号之和（版本号只增不减，和变了说明有表被更新过）
+ *          2. 查询：开始查库前先记下 key 的版本号 v，查完后只有版本号仍为 v 才放入缓存，并且条目记录版本号 v
+ *          3. 更新：先更新数据库，再用 CAS 把相关表的版本号加 1，不需要清缓存，也不需要加锁
+ *          4. 命中时比较条目的版本号和 key 当前的版本号，不一致说明是旧值，当作未命中
+ *          5. 解析不出表名的查询（如 select now()）不知道哪些更新会影响它，不缓存，直接查库
+ *          6. 旧条目除了命中时删除，每次更新和放入时还会增量检查一小批条目（SWEEP_BATCH 个），不再被读取的旧条目也会被清理
+ *      正确性：
+ *          查询线程的查库如果发生在更新数据库之前，那么版本号递增一定发生在它记下 v 之后，它放入的条目版本号是旧的，之后会被当作未命中
+ *          所以无论放入缓存的动作晚到什么时候，旧值都不会被读到
+ * @author: Su
+ * @create: 2026-10-19 17:40
+ **/
+public class VersionedCachedDao<T> {
+    // 每次增量清理检查的条目数
+    private static final int SWEEP_BATCH = 16;
+    private final ConcurrentHashMap<SqlPair, Versioned<T>> map = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, AtomicLong> tableVersions = new ConcurrentHashMap<>();
+    // 解析不出表名的更新 只能让所有条目失效
+    private final AtomicLong globalVersion = new AtomicLong();
+    // 同一时刻只有 cas 成功的线程做增量清理 其它线程直接跳过 不等待
+    private final AtomicBoolean sweeping = new AtomicBoolean();
+    // 清理的游标 只在 sweeping 为 true 时访问（cas 和 set 保证可见性）
+    private Iterator<Map.Entry<SqlPair, Versioned<T>>> sweepCursor;
+    //不带缓存机制的dao
+    private final GenericDao genericDao;
+
+    public VersionedCachedDao(GenericDao genericDao) {
+        this.genericDao = genericDao;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        // 模拟数据库中 user 表的一行数据
+        AtomicLong row = new AtomicLong(1);
+        VersionedCachedDao<Object> dao = new VersionedCachedDao<>(new GenericDao<Object>() {
+            @Override
+            public Object queryOne(Class<Object> beanClass, String sql, Object... params) {
+                long x = row.get();
+                try {
+                    // 查询比较慢 查出旧值后才放入缓存
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+                return x;
+            }
+
+            @Override
+            public int update(String sql, Object... params) {
+                row.set((Long) params[0]);
+                return 1;
+            }
+        });
+        Thread t1 = new Thread(() -> dao.queryOne(Object.class, "select x from user where id = 1"), "t1");
+        t1.start();
+        Thread.sleep(10);
+        // t1 查出 x=1 之后、放入缓存之前 更新为 x=2
+        dao.update("update user set x = ? where id = 1", 2L);
+        t1.join();
+        Object x = dao.queryOne(Object.class, "select x from user where id = 1");
+        System.out.println("更新后查询: " + x);
+        // t1 查出的旧值 1 不能回填到缓存中
+        if (!Long.valueOf(2).equals(x)) {
+            throw new IllegalStateException("旧值回填: " + x);
+        }
+        AtomicLong queries = new AtomicLong();
+        VersionedCachedDao<Object> fast = new VersionedCachedDao<>(new GenericDao<Object>() {
+            @Override
+            public Object queryOne(Class<Object> beanClass, String sql, Object... params) {
+                return queries.incrementAndGet();
+            }
+        });
+        // 解析不出表名的查询不缓存 否则任何 update 都无法让它失效
+        fast.queryOne(Object.class, "select now()");
+        fast.queryOne(Object.class, "select now()");
+        if (queries.get() != 2 || fast.size() != 0) {
+            throw new IllegalStateException("没有表名的查询被缓存了");
+        }
+        // user 表更新后 旧条目即使不再被读取 也会在之后的放入中被增量清理
+        for (int i = 0; i < 1000; i++) {
+            fast.queryOne(Object.class, "select * from user where id = ?", i);
+        }
+        fast.update("update user set name = ?", "su");
+        for (int i = 0; i < 1000; i++) {
+            fast.queryOne(Object.class, "select * from orders where id = ?", i);
+        }
+        System.out.println("user 表更新后的条目数: " + fast.size());
+        if (fast.size() != 1000) {
+            throw new IllegalStateException("旧版本的条目没有被清理: " + fast.size());
+        }
+    }
+
+    public T queryOne(Class<T> beanClass, String sql, Object... params) {
+        Set<String> tables = SqlTables.of(sql);
+        if (tables.isEmpty()) {
+            // 没有表名的条目无法按表失效 不缓存
+            return (T) genericDao.queryOne(beanClass, sql, params);
+        }
+        long version = versionOf(tables);
+        // 命中时用线程私有的 SqlProbe 查找 不创建 key
+        SqlProbe probe = SqlProbe.of(sql, params);
+        Versioned<T> entry = map.get(probe);
+        if (entry != null) {
+            if (entry.version == version) {
+                return entry.value;
+            }
+            // 旧版本的条目 顺手删掉
+            map.remove(probe, entry);
+        }
+        T value = (T) genericDao.queryOne(beanClass, sql, params);
+        if (value != null && versionOf(tables) == version) {
+            SqlPair key = new SqlPair(sql, params);
+            Versioned<T> created = new Versioned<>(value, version, tables);
+            // 并发放入时保留版本号大的
+            map.merge(key, created, (old, now) -> old.version >= now.version ? old : now);
+            sweep();
+        }
+        return value;
+    }
+
+    public int update(String sql, Object... params) {
+        int rows = genericDao.update(sql, params);
+        Set<String> tables = SqlTables.of(sql);
+        if (tables.isEmpty()) {
+            increment(globalVersion);
+        }
+        for (String table : tables) {
+            increment(tableVersions.computeIfAbsent(table, t -> new AtomicLong()));
+        }
+        sweep();
+        return rows;
+    }
+
+    // 增量清理：从上次的位置继续 检查 SWEEP_BATCH 个条目 删除版本号已经过时的
+    private void sweep() {
+        if (!sweeping.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            for (int i = 0; i < SWEEP_BATCH; i++) {
+                if (sweepCursor == null || !sweepCursor.hasNext()) {
+                    // 一圈检查完了 从头开始
+                    sweepCursor = map.entrySet().iterator();
+                    if (!sweepCursor.hasNext()) {
+                        return;
+                    }
+                }
+                Map.Entry<SqlPair, Versioned<T>> e = sweepCursor.next();
+                Versioned<T> entry = e.getValue();
+                if (entry.version != versionOf(entry.tables)) {
+                    map.remove(e.getKey(), entry);
+                }
+            }
+        } finally {
+            sweeping.set(false);
+        }
+    }
+
+    // 与 AccountCas 中的写法相同 cas 失败则重试
+    private static void increment(AtomicLong version) {
+        while (true) {
+            long prev = version.get();
+            if (version.compareAndSet(prev, prev + 1)) {
+                break;
+            }
+        }
+    }
+
+    private long versionOf(Set<String> tables) {
+        long version = globalVersion.get();
+        for (String table : tables) {
+            AtomicLong tableVersion = tableVersions.get(table);
+            if (tableVersion != null) {
+                version += tableVersion.get();
+            }
+        }
+        return version;
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    static final class Versioned<T> {
+        final T value;
+        final long version;
+        // 条目依赖的表 清理时用来计算当前版本号
+        final Set<String> tables;
+
+        Versioned(T value, long version, Set<String> tables) {
+            this.value = value;
+            this.version = version;
+            this.tables = tables;
+        }
+    }
+}
@@ -0,0 +1,578 @@
+package com.concurrent.tools.principle;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * @program: su-concurrent
+ * @description: 写后（write-behind）缓存
+ *      GenericCachedDao2 的问题：
+ *          update 持有写锁期间同步执行 genericDao.update，一次数据库往返的时间里所有读线程都被挡住，写多的时候读也跟着卡住
+ *      思路：
+ *          1. updateBehind 把新值直接放入缓存，更新语句排队后立即返回，不等数据库
+ *          2. 排队的写按（缓存 key，更新 sql）合并，同一行同一条更新语句在落库前的多次写入只保留最后一次
+ *             （要求更新语句写的是它涉及的列的最终状态）；同一行不同的更新语句各自保留，按写入的先后执行
+ *          3. 后台线程在攒够 maxBatchSize 条或等够 flushInterval 时批量落库（按 sql 分组走 updateMany）
+ *             落库失败的写重新入队，按指数退避重试
+ *          4. 持久性：入队前先追加到本地日志（WRITE 记录），一批落库成功后追加 COMMIT 记录，
+ *             队列为空时截断日志；启动时重放最后一个 COMMIT 之后的 WRITE，进程崩溃也不会丢写
+ *             updateBehind 等自己的 WRITE 刷盘后才返回，刷盘是组提交：同一时刻只有一个线程 fsync，
+ *             它覆盖此前已追加的所有写，其它线程等到 durableSeq 不小于自己的序号即可返回
+ *      一致性：
+ *          命中不加锁；未命中查库后用 putIfAbsent 回填，不会覆盖 updateBehind 放入的新值
+ *          updateBehind 持有读锁（互相之间不阻塞），同步的 update 持有写锁：先把排队的写全部落库，再执行自己并清空缓存
+ *      注意：
+ *          排队期间数据库中还是旧值，其它 sql 直接查库（或查的是别的缓存 key）会读到旧值
+ * @author: Su
+ * @create: 2026-10-19 21:50
+ **/
+public class WriteBehindCachedDao<T> implements AutoCloseable {
+    private static final byte WRITE = 1;
+    private static final byte COMMIT = 2;
+    // 落库失败后的重试间隔 每次失败翻倍
+    private static final long MIN_RETRY_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long MAX_RETRY_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final ConcurrentHashMap<SqlPair, T> map = new ConcurrentHashMap<>();
+    private final ReentrantReadWriteLock loadLock = new ReentrantReadWriteLock();
+    // 保护 pending、nextSeq 和日志的追加
+    private final ReentrantLock pendingLock = new ReentrantLock();
+    private final Condition flushNeeded = pendingLock.newCondition();
+    // 同一时刻只有一个线程在落库 保证批次之间的顺序
+    private final ReentrantLock flushLock = new ReentrantLock();
+    // 待落库的写 （缓存 key，更新 sql） -> 最后一次写 按最后一次写入的先后排列
+    private LinkedHashMap<WriteKey, PendingWrite> pending = new LinkedHashMap<>();
+    private long nextSeq = 1;
+    // 组提交：一个线程 fsync 时其它线程等它的结果 保护 durableSeq、forcing
+    private final ReentrantLock forceLock = new ReentrantLock();
+    private final Condition durableChanged = forceLock.newCondition();
+    // 序号不超过 durableSeq 的写都已经刷盘
+    private long durableSeq;
+    private boolean forcing;
+    // fsync 次数
+    private final LongAdder forces = new LongAdder();
+    private final int maxBatchSize;
+    private final long flushIntervalNanos;
+    // 本地追加日志 为 null 时不保证持久性
+    private final FileChannel log;
+    private final Thread flusher;
+    private volatile boolean closed;
+    //不带缓存机制的dao
+    private final GenericDao genericDao;
+
+    public WriteBehindCachedDao(GenericDao genericDao) {
+        this(genericDao, null, 256, 10, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param logFile 本地追加日志 已存在时先重放其中未提交的写
+     */
+    public WriteBehindCachedDao(GenericDao genericDao, Path logFile, int maxBatchSize, long flushInterval, TimeUnit unit) {
+        this.genericDao = genericDao;
+        this.maxBatchSize = maxBatchSize;
+        this.flushIntervalNanos = unit.toNanos(flushInterval);
+        if (logFile == null) {
+            this.log = null;
+        } else {
+            try {
+                this.log = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                recover();
+            } catch (IOException e) {
+                throw new UncheckedIOException("cannot open write-behind log " + logFile, e);
+            }
+        }
+        this.flusher = new Thread(this::flushLoop, "cache-write-behind");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    public static void main(String[] args) throws Exception {
+        LatencyDatabase db = new LatencyDatabase(8, 1000, 0.2, 0, 0, 0, 1000);
+        Path logFile = Files.createTempFile("write-behind", ".log");
+        String query = "select * from user where id = ?";
+        String update = "update user set name = ? where id = ?";
+        long start = System.nanoTime();
+        long forced;
+        try (WriteBehindCachedDao<Object> dao = new WriteBehindCachedDao<>(new LatencyGenericDao<>(db), logFile,
+                256, 10, TimeUnit.MILLISECONDS)) {
+            Thread[] threads = new Thread[8];
+            for (int i = 0; i < threads.length; i++) {
+                int base = i;
+                threads[i] = new Thread(() -> {
+                    for (int j = 0; j < 500; j++) {
+                        int id = (base * 500 + j) % 100;
+                        String name = "su" + j;
+                        dao.updateBehind(name, query, new Object[]{id}, update, name, id);
+                        dao.queryOne(Object.class, query, id);
+                    }
+                });
+                threads[i].start();
+            }
+            for (Thread t : threads) {
+                t.join();
+            }
+            System.out.println("4000 次写入耗时(ms): " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+                    + ", fsync 次数: " + dao.forceCount());
+            forced = dao.forceCount();
+        }
+        System.out.println("数据库更新往返次数: " + db.updates.sum());
+        if (db.updates.sum() >= 4000) {
+            throw new IllegalStateException("写入没有合并: " + db.updates.sum());
+        }
+        // 8 个线程并发写入 等待刷盘的写应该共用 fsync
+        if (forced >= 4000) {
+            throw new IllegalStateException("每次写入各自 fsync 没有组提交: " + forced);
+        }
+
+        // 同一行的两条不同更新语句都要执行 同一条语句只执行最后一次
+        List<String> executed = new ArrayList<>();
+        GenericDao<Object> recording = new GenericDao<Object>() {
+            @Override
+            public int update(String sql, Object... params) {
+                synchronized (executed) {
+                    executed.add(sql + " " + params[0]);
+                }
+                return 1;
+            }
+        };
+        String updateAge = "update user set age = ? where id = ?";
+        try (WriteBehindCachedDao<Object> dao = new WriteBehindCachedDao<>(recording, null, 256, 1, TimeUnit.HOURS)) {
+            dao.updateBehind("su1", query, new Object[]{1}, update, "su1", 1);
+            dao.updateBehind("su1", query, new Object[]{1}, updateAge, 18, 1);
+            dao.updateBehind("su2", query, new Object[]{1}, update, "su2", 1);
+        }
+        System.out.println("同一行执行的更新: " + executed);
+        if (!executed.equals(Arrays.asList(updateAge + " 18", update + " su2"))) {
+            throw new IllegalStateException("同一行的更新合并错误: " + executed);
+        }
+
+        // 模拟崩溃：写入后不关闭、也不等落库，重新打开同一个日志
+        LatencyDatabase db2 = new LatencyDatabase(8, 1000, 0.2, 0, 0, 0, 1000);
+        WriteBehindCachedDao<Object> crashed = new WriteBehindCachedDao<>(new LatencyGenericDao<>(db2), logFile,
+                256, 1, TimeUnit.HOURS);
+        for (int id = 0; id < 10; id++) {
+            crashed.updateBehind("su", query, new Object[]{id}, update, "su", id);
+        }
+        // 打开时重放
+        new WriteBehindCachedDao<>(new LatencyGenericDao<>(db2), logFile, 256, 10, TimeUnit.MILLISECONDS).close();
+        System.out.println("重启后重放的更新往返次数: " + db2.updates.sum());
+        if (db2.updates.sum() != 10) {
+            throw new IllegalStateException("崩溃前的写没有全部重放: " + db2.updates.sum());
+        }
+        Files.deleteIfExists(logFile);
+    }
+
+    public T queryOne(Class<T> beanClass, String sql, Object... params) {
+        // 命中时用线程私有的 SqlProbe 查找 不创建 key
+        T value = map.get(SqlProbe.of(sql, params));
+        if (value != null) {
+            return value;
+        }
+        SqlPair key = new SqlPair(sql, params);
+        loadLock.readLock().lock();
+        try {
+            value = map.get(key);
+            if (value == null) {
+                value = (T) genericDao.queryOne(beanClass, sql, params);
+                if (value != null) {
+                    // 查库期间可能有 updateBehind 放入了新值 以缓存中的为准
+                    T raced = map.putIfAbsent(key, value);
+                    if (raced != null) {
+                        value = raced;
+                    }
+                }
+            }
+            return value;
+        } finally {
+            loadLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 写后更新：value 立刻成为 querySql + queryParams 的缓存值，updateSql 排队异步落库
+     */
+    public void updateBehind(T value, String querySql, Object[] queryParams, String updateSql, Object... updateParams) {
+        SqlPair key = new SqlPair(querySql, queryParams);
+        long seq;
+        loadLock.readLock().lock();
+        try {
+            pendingLock.lock();
+            try {
+                if (closed) {
+                    throw new IllegalStateException("write-behind cache closed");
+                }
+                seq = nextSeq++;
+                appendWrite(seq, updateSql, updateParams);
+                enqueue(pending, new WriteKey(key, updateSql), new PendingWrite(seq, updateSql, updateParams));
+                map.put(key, value);
+                if (pending.size() >= maxBatchSize) {
+                    flushNeeded.signal();
+                }
+            } finally {
+                pendingLock.unlock();
+            }
+            awaitDurable(seq);
+        } finally {
+            loadLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 同步更新：与 GenericCachedDao2 相同，但要先把排队的写落库，保证执行顺序
+     */
+    public int update(String sql, Object... params) {
+        loadLock.writeLock().lock();
+        try {
+            flush();
+            int rows = genericDao.update(sql, params);
+            map.clear();
+            return rows;
+        } finally {
+            loadLock.writeLock().unlock();
+        }
+    }
+
+    private void flushLoop() {
+        long retryNanos = MIN_RETRY_NANOS;
+        while (true) {
+            pendingLock.lock();
+            try {
+                long remaining = flushIntervalNanos;
+                while (pending.size() < maxBatchSize && !closed && remaining > 0) {
+                    remaining = flushNeeded.awaitNanos(remaining);
+                }
+                if (closed && pending.isEmpty()) {
+                    return;
+                }
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                pendingLock.unlock();
+            }
+            try {
+                flush();
+                retryNanos = MIN_RETRY_NANOS;
+            } catch (RuntimeException e) {
+                // 失败的写已重新入队 退避后重试（日志中仍有记录 关闭后重启时重放）
+                // 重新入队的写可能已经够一批 不退避的话上面的等待会直接跳过 变成空转
+                e.printStackTrace();
+                if (closed || !backoff(retryNanos)) {
+                    return;
+                }
+                retryNanos = Math.min(retryNanos * 2, MAX_RETRY_NANOS);
+            }
+        }
+    }
+
+    // 等待 nanos 或者关闭 被中断时返回 false
+    private boolean backoff(long nanos) {
+        pendingLock.lock();
+        try {
+            long remaining = nanos;
+            while (!closed && remaining > 0) {
+                remaining = flushNeeded.awaitNanos(remaining);
+            }
+            return true;
+        } catch (InterruptedException e) {
+            return false;
+        } finally {
+            pendingLock.unlock();
+        }
+    }
+
+    // 取走当前所有待落库的写 按 sql 分组批量执行 成功后提交
+    private void flush() {
+        flushLock.lock();
+        try {
+            LinkedHashMap<WriteKey, PendingWrite> batch;
+            long maxSeq;
+            pendingLock.lock();
+            try {
+                if (pending.isEmpty()) {
+                    return;
+                }
+                batch = pending;
+                pending = new LinkedHashMap<>();
+                maxSeq = nextSeq - 1;
+            } finally {
+                pendingLock.unlock();
+            }
+            // 按 sql 分组会打乱顺序：同一行的第 n 条写放在第 n 轮，各轮依次执行，轮内再按 sql 分组
+            List<Map<String, List<Object[]>>> rounds = new ArrayList<>();
+            Map<SqlPair, Integer> roundOf = new HashMap<>();
+            for (Map.Entry<WriteKey, PendingWrite> e : batch.entrySet()) {
+                int round = roundOf.merge(e.getKey().key, 0, (previous, ignored) -> previous + 1);
+                if (round == rounds.size()) {
+                    rounds.add(new LinkedHashMap<>());
+                }
+                PendingWrite write = e.getValue();
+                rounds.get(round).computeIfAbsent(write.sql, s -> new ArrayList<>()).add(write.params);
+            }
+            try {
+                for (Map<String, List<Object[]>> bySql : rounds) {
+                    for (Map.Entry<String, List<Object[]>> e : bySql.entrySet()) {
+                        genericDao.updateMany(e.getKey(), e.getValue());
+                    }
+                }
+            } catch (RuntimeException e) {
+                requeue(batch);
+                throw e;
+            }
+            commit(maxSeq);
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    // 失败的批次放回队列 排在新的写之前 已有更新的写（key 和 sql 都相同）保留新的
+    private void requeue(LinkedHashMap<WriteKey, PendingWrite> batch) {
+        pendingLock.lock();
+        try {
+            LinkedHashMap<WriteKey, PendingWrite> merged = new LinkedHashMap<>(batch);
+            for (Map.Entry<WriteKey, PendingWrite> e : pending.entrySet()) {
+                enqueue(merged, e.getKey(), e.getValue());
+            }
+            pending = merged;
+        } finally {
+            pendingLock.unlock();
+        }
+    }
+
+    // 先删再放 合并后的写排到最后 保持同一行不同语句之间的先后
+    private static void enqueue(LinkedHashMap<WriteKey, PendingWrite> queue, WriteKey key, PendingWrite write) {
+        queue.remove(key);
+        queue.put(key, write);
+    }
+
+    private void commit(long maxSeq) {
+        if (log == null) {
+            return;
+        }
+        pendingLock.lock();
+        try {
+            if (pending.isEmpty()) {
+                // 日志中的写都已落库 直接截断
+                log.truncate(0);
+            } else {
+                appendRecord(COMMIT, maxSeq, null);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            pendingLock.unlock();
+        }
+    }
+
+    // 持有 pendingLock 调用
+    private void appendWrite(long seq, String sql, Object[] params) {
+        if (log == null) {
+            return;
+        }
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                out.writeUTF(sql);
+                out.writeObject(params);
+            }
+            appendRecord(WRITE, seq, bytes.toByteArray());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // 记录格式：长度(int) 类型(byte) 序号(long) 内容
+    private void appendRecord(byte type, long seq, byte[] payload) throws IOException {
+        int length = 1 + 8 + (payload == null ? 0 : payload.length);
+        ByteBuffer buffer = ByteBuffer.allocate(4 + length);
+        buffer.putInt(length).put(type).putLong(seq);
+        if (payload != null) {
+            buffer.put(payload);
+        }
+        buffer.flip();
+        long position = log.size();
+        while (buffer.hasRemaining()) {
+            position += log.write(buffer, position);
+        }
+    }
+
+    // 组提交：等到 seq 刷盘后返回
+    // 没有线程在刷盘时由当前线程刷盘 一次 fsync 覆盖此刻已追加的所有写；正在刷盘时等它结束 它没有覆盖 seq 再自己刷
+    private void awaitDurable(long seq) {
+        if (log == null) {
+            return;
+        }
+        forceLock.lock();
+        try {
+            while (durableSeq < seq) {
+                if (forcing) {
+                    durableChanged.awaitUninterruptibly();
+                    continue;
+                }
+                forcing = true;
+                forceLock.unlock();
+                // 刷盘失败时 target 保持为 0 等待的线程自己重试
+                long target = 0;
+                try {
+                    long appended;
+                    pendingLock.lock();
+                    try {
+                        appended = nextSeq - 1;
+                    } finally {
+                        pendingLock.unlock();
+                    }
+                    log.force(false);
+                    forces.increment();
+                    target = appended;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                } finally {
+                    forceLock.lock();
+                    forcing = false;
+                    durableSeq = Math.max(durableSeq, target);
+                    durableChanged.signalAll();
+                }
+            }
+        } finally {
+            forceLock.unlock();
+        }
+    }
+
+    // 重放最后一个 COMMIT 之后的写 末尾不完整的记录（写到一半时崩溃）丢弃
+    private void recover() throws IOException {
+        long size = log.size();
+        if (size == 0) {
+            return;
+        }
+        ByteBuffer content = ByteBuffer.allocate((int) size);
+        while (content.hasRemaining()) {
+            if (log.read(content, content.position()) < 0) {
+                break;
+            }
+        }
+        content.flip();
+        long committed = 0;
+        List<PendingWrite> writes = new ArrayList<>();
+        while (content.remaining() >= 4) {
+            int length = content.getInt();
+            if (length < 9 || length > content.remaining()) {
+                break;
+            }
+            byte type = content.get();
+            long seq = content.getLong();
+            byte[] payload = new byte[length - 9];
+            content.get(payload);
+            if (type == COMMIT) {
+                committed = seq;
+            } else {
+                try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(payload))) {
+                    writes.add(new PendingWrite(seq, in.readUTF(), (Object[]) in.readObject()));
+                } catch (ClassNotFoundException e) {
+                    throw new IOException(e);
+                }
+            }
+        }
+        for (PendingWrite write : writes) {
+            if (write.seq > committed) {
+                genericDao.update(write.sql, write.params);
+            }
+        }
+        log.truncate(0);
+        log.force(true);
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    long forceCount() {
+        return forces.sum();
+    }
+
+    @Override
+    public void close() throws IOException {
+        pendingLock.lock();
+        try {
+            closed = true;
+            flushNeeded.signalAll();
+        } finally {
+            pendingLock.unlock();
+        }
+        // 必须等后台线程结束才能关闭日志 被中断时继续等 最后恢复中断标记
+        boolean interrupted = false;
+        while (true) {
+            try {
+                flusher.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (log != null) {
+            log.close();
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // 合并待落库的写用的 key
+    static final class WriteKey {
+        final SqlPair key;
+        final String sql;
+
+        WriteKey(SqlPair key, String sql) {
+            this.key = key;
+            this.sql = sql;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof WriteKey)) {
+                return false;
+            }
+            WriteKey other = (WriteKey) o;
+            return key.equals(other.key) && sql.equals(other.sql);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * key.hashCode() + sql.hashCode();
+        }
+    }
+
+    static final class PendingWrite {
+        final long seq;
+        final String sql;
+        final Object[] params;
+
+        PendingWrite(long seq, String sql, Object[] params) {
+            this.seq = seq;
+            this.sql = sql;
+            this.params = params;
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package com.pattern.asynchronous;
+
+import com.concurrent.tools.principle.HierarchicalTimingWheel;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * @program: su-concurrent
+ * @description: 支持延迟投递和优先级的消息队列
+ *     MessageQueue 的问题：
+ *        严格先进先出。失败重试想过一会儿再投递（退避）只能自己起定时器；紧急消息也只能排在积压的消息后面
+ *     思路：
+ *        1. 就绪消息按优先级分成几个先进先出队列，take 总是从最高优先级的非空队列取（0 最高），同一优先级内保持先进先出
+ *        2. 延迟消息不进就绪队列，而是放入分层时间轮（HierarchicalTimingWheel），放入 O(1)，
+ *           几百万条延迟重试也不会像按时间排序的结构（DelayQueue 的堆、有序链表）那样越放越慢
+ *        3. 不需要额外的定时线程：take 的线程持有锁时推进时间轮，把到期的消息放入对应优先级的就绪队列；
+ *           没有就绪消息但还有延迟消息时，只等到时间轮中最早的非空格（nextDeadlineNanos），而不是每个 tick 醒一次；
+ *           新放入的延迟消息比消费者等待的时间还早时，叫醒等待的消费者重新计算（这种情况很少，大多数延迟消息都排在后面）
+ *        4. 时间轮不是线程安全的，所有访问都在同一把锁内进行
+ *     注意：
+ *        容量只限制直接放入的就绪消息，延迟消息到期后总能进入就绪队列（不会因为队列满了而丢失或阻塞时间轮）
+ *        严格优先级下，高优先级消息源源不断时低优先级消息会饥饿
+ * @author: Su
+ * @create: 2026-10-20 11:50
+ **/
+public class DelayedMessageQueue {
+    public static final int HIGH = 0;
+    public static final int NORMAL = 1;
+    public static final int LOW = 2;
+
+    private final ArrayDeque<Message>[] ready;
+    private int readyCount;
+    private final int capcity;
+    private final HierarchicalTimingWheel<Delayed> wheel;
+    // 等待中的消费者打算醒来的时间 Long.MAX_VALUE 表示没有按时间等待的消费者
+    private long waitUntil = Long.MAX_VALUE;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+
+    public DelayedMessageQueue(int capcity) {
+        this(capcity, 3, 1, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param priorities 优先级个数 0 最高
+     * @param tick 时间轮的精度
+     */
+    @SuppressWarnings("unchecked")
+    public DelayedMessageQueue(int capcity, int priorities, long tick, TimeUnit unit) {
+        this.capcity = capcity;
+        this.ready = new ArrayDeque[priorities];
+        for (int i = 0; i < priorities; i++) {
+            ready[i] = new ArrayDeque<>();
+        }
+        this.wheel = new HierarchicalTimingWheel<>(tick, unit, System.nanoTime());
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        DelayedMessageQueue queue = new DelayedMessageQueue(1024);
+        // 100 万条延迟重试 放入都是 O(1)
+        long start = System.nanoTime();
+        for (int i = 0; i < 1_000_000; i++) {
+            queue.putDelayed(new Message(i, "重试"), 10 + i % 1000, TimeUnit.SECONDS, LOW);
+        }
+        System.out.println("放入 100 万条延迟消息耗时(ms): " + (System.nanoTime() - start) / 1_000_000);
+        for (int i = 0; i < 3; i++) {
+            queue.put(new Message(i, "普通" + i));
+        }
+        long delayedAt = System.nanoTime();
+        queue.putDelayed(new Message(100, "100ms 后投递"), 100, TimeUnit.MILLISECONDS, NORMAL);
+        queue.put(new Message(200, "紧急"), HIGH);
+        // 紧急消息插队 普通消息先进先出 延迟消息最后到
+        int[] expected = {200, 0, 1, 2, 100};
+        for (int id : expected) {
+            Message message = queue.take();
+            System.out.println(message);
+            if (message.getId() != id) {
+                throw new IllegalStateException("投递顺序错误 期望 " + id + " 实际 " + message.getId());
+            }
+        }
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - delayedAt);
+        System.out.println("延迟消息等待(ms): " + elapsed + ", 剩余延迟消息: " + queue.delayedSize());
+        if (elapsed < 100) {
+            throw new IllegalStateException("延迟消息提前投递: " + elapsed + "ms");
+        }
+        if (queue.delayedSize() != 1_000_000) {
+            throw new IllegalStateException("延迟消息丢失: " + queue.delayedSize());
+        }
+    }
+
+    //存入普通优先级的消息
+    public void put(Message message) {
+        put(message, NORMAL);
+    }
+
+    //存入消息 就绪消息满时等待
+    public void put(Message message, int priority) {
+        lock.lock();
+        try {
+            while (readyCount >= capcity) {
+                try {
+                    notFull.await();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+            ready[priority].addLast(message);
+            readyCount++;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 延迟投递 不受容量限制 到期后进入 priority 对应的就绪队列
+     */
+    public void putDelayed(Message message, long delay, TimeUnit unit, int priority) {
+        if (delay <= 0) {
+            put(message, priority);
+            return;
+        }
+        lock.lock();
+        try {
+            long deadline = System.nanoTime() + unit.toNanos(delay);
+            wheel.schedule(new Delayed(message, priority), deadline);
+            if (deadline < waitUntil) {
+                // 消费者在无限期等待或者等得比这条消息更久 叫醒它们重新计算等待时间
+                waitUntil = deadline;
+                notEmpty.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //获取优先级最高的就绪消息
+    public Message take() {
+        lock.lock();
+        try {
+            while (true) {
+                promoteDue();
+                for (ArrayDeque<Message> queue : ready) {
+                    Message message = queue.pollFirst();
+                    if (message != null) {
+                        readyCount--;
+                        notFull.signal();
+                        return message;
+                    }
+                }
+                try {
+                    long deadline = wheel.nextDeadlineNanos();
+                    waitUntil = deadline;
+                    if (deadline == Long.MAX_VALUE) {
+                        notEmpty.await();
+                    } else {
+                        long nanos = deadline - System.nanoTime();
+                        if (nanos > 0) {
+                            notEmpty.awaitNanos(nanos);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 持有锁调用 到期的延迟消息放入就绪队列
+    private void promoteDue() {
+        if (wheel.size() == 0) {
+            return;
+        }
+        int promoted = wheel.advance(System.nanoTime(), delayed -> {
+            ready[delayed.priority].addLast(delayed.message);
+            readyCount++;
+        });
+        // 自己只取一条 其余的叫醒其它消费者
+        for (int i = 1; i < promoted; i++) {
+            notEmpty.signal();
+        }
+    }
+
+    public int delayedSize() {
+        lock.lock();
+        try {
+            return wheel.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    static final class Delayed {
+        final Message message;
+        final int priority;
+
+        Delayed(Message message, int priority) {
+            this.message = message;
+            this.priority = priority;
+        }
+    }
+}
@@ -0,0 +1,609 @@
+package com.pattern.asynchronous;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * @program: su-concurrent
+ * @description: 持久化的消息日志（内存映射 分段 只追加）
+ *     MessageQueue 的问题：
+ *        消息只在堆里，进程崩溃就全部丢失；能存多少消息受堆大小限制；消息被 take 之后就没了，不能重新消费
+ *     思路（与 Kafka 的日志相同）：
+ *        1. 消息按顺序追加到分段文件中，每条消息有一个全局递增的 offset；文件名是该段第一条消息的 offset
+ *           每个段创建时就映射（MappedByteBuffer）进来，追加就是往映射区写字节，不需要 write 系统调用，也不经过堆外缓冲的再次拷贝
+ *           段写满后滚动到新的段
+ *        2. 记录格式：长度 | crc | 消息 id | 消息内容（java 序列化），启动时扫描最后能通过 crc 校验的位置，写到一半崩溃的记录被丢弃
+ *        3. 稀疏索引：每个段每 32 条记录记一个文件位置（一个 int），按 offset 查找时先找到段，再从最近的索引点往后跳
+ *        4. 消费位置（offset）由消费者自己提交，按消费组保存在单独的小文件中；任何时候都可以从任意 offset 重新读（重放）
+ *        5. 组提交：追加只写映射区，后台线程在未刷盘的字节数达到阈值或时间到了时统一 force（fsync），
+ *           需要确认落盘的生产者调用 awaitDurable，多个生产者共用同一次刷盘
+ *           段滚动时旧段也交给后台线程刷盘，追加线程不做 fsync；刷盘失败后 awaitDurable 抛出异常，不会永远等待
+ *        6. 保留策略：超过保留时间或总大小超过上限的旧段整段删除（当前正在写的段不删）
+ *     注意：
+ *        每个段最大 2GB（单次映射的上限）；同一个目录只能由一个进程打开
+ *        某个段中间的记录损坏时，恢复后该段只保留损坏之前的记录，读取时跳过缺口，从下一个段继续
+ * @author: Su
+ * @create: 2026-10-20 10:40
+ **/
+public class DurableMessageLog implements AutoCloseable {
+    // 长度 + crc + 消息 id
+    private static final int HEADER = 12;
+    private static final int INDEX_INTERVAL = 32;
+    private static final String SUFFIX = ".log";
+    private static final String OFFSET_SUFFIX = ".offset";
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final long flushBytes;
+    private final long flushIntervalNanos;
+    private final long retentionMillis;
+    private final long retentionBytes;
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+    // 追加互斥 读线程在 appended 上等待新消息
+    private final ReentrantLock appendLock = new ReentrantLock();
+    private final Condition appended = appendLock.newCondition();
+    private Segment active;
+    private long unflushedBytes;
+    // 已经滚动、等待后台线程刷盘的旧段
+    private List<Segment> rolled = new ArrayList<>();
+    // 下一条消息的 offset 写完记录后才更新 读线程只读它之前的记录
+    private volatile long nextOffset;
+    // 已刷盘的 offset（不含）
+    private final ReentrantLock flushLock = new ReentrantLock();
+    private final Condition flushed = flushLock.newCondition();
+    private volatile long flushedOffset;
+    // 刷盘失败的原因 后台线程随之停止
+    private volatile Throwable flushFailure;
+    // 消费组 -> 保存提交位置的映射区（8 字节）
+    private final Map<String, MappedByteBuffer> groupOffsets = new ConcurrentHashMap<>();
+    private final Thread flusher;
+    private volatile boolean running = true;
+
+    /**
+     * @param segmentBytes 每个段的大小
+     * @param flushBytes 未刷盘的字节数达到多少时刷盘
+     * @param flushInterval 最长多久刷一次盘
+     * @param retentionMillis 段的保留时间 0 表示不按时间删除
+     * @param retentionBytes 所有段的总大小上限 0 表示不按大小删除
+     */
+    public DurableMessageLog(Path dir, int segmentBytes, long flushBytes, long flushInterval, TimeUnit unit,
+                             long retentionMillis, long retentionBytes) throws IOException {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.flushBytes = flushBytes;
+        this.flushIntervalNanos = unit.toNanos(flushInterval);
+        this.retentionMillis = retentionMillis;
+        this.retentionBytes = retentionBytes;
+        Files.createDirectories(dir);
+        recover();
+        this.flusher = new Thread(this::flushLoop, "message-log-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    public static void main(String[] args) throws Exception {
+        Path dir = Files.createTempDirectory("message-log");
+        try (DurableMessageLog log = new DurableMessageLog(dir, 1 << 20, 256 << 10, 5, TimeUnit.MILLISECONDS, 0, 0)) {
+            Thread[] producers = new Thread[4];
+            for (int i = 0; i < producers.length; i++) {
+                int base = i * 25_000;
+                producers[i] = new Thread(() -> {
+                    long last = 0;
+                    for (int j = 0; j < 25_000; j++) {
+                        last = log.append(new Message(base + j, "值" + (base + j)));
+                    }
+                    // 确认自己写的消息都已落盘
+                    log.awaitDurable(last);
+                }, "生产者" + i);
+                producers[i].start();
+            }
+            for (Thread t : producers) {
+                t.join();
+            }
+            DurableMessageQueue queue = new DurableMessageQueue(log, "group-a");
+            for (int i = 0; i < 60_000; i++) {
+                queue.take();
+            }
+            System.out.println("段数: " + log.segments.size() + ", 消息数: " + log.endOffset()
+                    + ", group-a 提交位置: " + log.committed("group-a"));
+            List<Message> replay = new ArrayList<>();
+            log.read(99_990, 100, replay);
+            System.out.println("重放最后 10 条中的第一条: " + replay.get(0));
+            if (log.endOffset() != 100_000 || log.committed("group-a") != 60_000 || replay.size() != 10) {
+                throw new IllegalStateException("消息数或提交位置不符");
+            }
+        }
+        // 重启：恢复消息和消费位置 从上次提交的位置继续消费
+        Message expected;
+        try (DurableMessageLog log = new DurableMessageLog(dir, 1 << 20, 256 << 10, 5, TimeUnit.MILLISECONDS, 0, 0)) {
+            List<Message> at = new ArrayList<>();
+            log.read(60_000, 1, at);
+            expected = at.get(0);
+            DurableMessageQueue queue = new DurableMessageQueue(log, "group-a");
+            Message next = queue.take();
+            System.out.println("重启后消息数: " + log.endOffset() + ", 继续消费: " + next);
+            if (log.endOffset() != 100_000 || next.getId() != expected.getId()) {
+                throw new IllegalStateException("重启后没有从提交位置继续: " + next);
+            }
+        }
+        // 第一个段中间的记录损坏：恢复后该段只保留损坏之前的记录 读取时跳过缺口
+        Path first;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+            List<Path> logs = new ArrayList<>();
+            files.forEach(logs::add);
+            logs.sort(null);
+            first = logs.get(0);
+        }
+        try (FileChannel channel = FileChannel.open(first, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{1, 2, 3, 4}), 100_000);
+        }
+        try (DurableMessageLog log = new DurableMessageLog(dir, 1 << 20, 256 << 10, 5, TimeUnit.MILLISECONDS, 0, 0)) {
+            List<Message> all = new ArrayList<>();
+            long offset = log.startOffset();
+            while (offset < log.endOffset()) {
+                offset = log.read(offset, 10_000, all);
+            }
+            System.out.println("损坏后可读消息数: " + all.size());
+            if (all.size() >= 100_000 || all.size() < 50_000) {
+                throw new IllegalStateException("损坏后可读消息数不符: " + all.size());
+            }
+        }
+        // 按大小保留：总大小超过 2MB 的旧段被删除
+        try (DurableMessageLog log = new DurableMessageLog(dir, 1 << 20, 256 << 10, 5, TimeUnit.MILLISECONDS, 0, 2 << 20)) {
+            Thread.sleep(50);
+            System.out.println("保留策略执行后段数: " + log.segments.size() + ", 最早的 offset: " + log.startOffset());
+            if (log.segments.size() > 2) {
+                throw new IllegalStateException("保留策略没有删除旧段: " + log.segments.size());
+            }
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(dir);
+    }
+
+    /**
+     * 追加一条消息 返回它的 offset（此时还不一定落盘）
+     */
+    public long append(Message message) {
+        byte[] payload = serialize(message.getObject());
+        int size = HEADER + payload.length;
+        if (size > segmentBytes) {
+            throw new IllegalArgumentException("message too large: " + size);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(message.getId() >>> 24);
+        crc.update(message.getId() >>> 16);
+        crc.update(message.getId() >>> 8);
+        crc.update(message.getId());
+        crc.update(payload);
+        appendLock.lock();
+        try {
+            if (active.writePosition + size > segmentBytes) {
+                roll();
+            }
+            long offset = nextOffset;
+            active.append(message.getId(), payload, (int) crc.getValue());
+            unflushedBytes += size;
+            nextOffset = offset + 1;
+            appended.signalAll();
+            if (unflushedBytes >= flushBytes) {
+                LockSupport.unpark(flusher);
+            }
+            return offset;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * 等待 offset 及之前的消息都已刷盘
+     */
+    public void awaitDurable(long offset) {
+        flushLock.lock();
+        try {
+            while (flushedOffset <= offset) {
+                if (flushFailure != null) {
+                    throw new IllegalStateException("message log flush failed", flushFailure);
+                }
+                flushed.awaitUninterruptibly();
+            }
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * 从 offset 开始最多读 max 条放入 sink 不等待，返回下一次读的 offset
+     * offset 已被保留策略删除时从最早的消息开始
+     */
+    public long read(long offset, int max, List<? super Message> sink) {
+        long end = nextOffset;
+        offset = Math.max(offset, startOffset());
+        int n = 0;
+        while (n < max && offset < end) {
+            Map.Entry<Long, Segment> entry = segments.floorEntry(offset);
+            if (entry == null) {
+                break;
+            }
+            Segment segment = entry.getValue();
+            long segmentEnd = Math.min(end, segment.baseOffset + segment.count);
+            if (offset >= segmentEnd) {
+                // 段尾部损坏的记录在恢复时被丢弃 跳过缺口
+                Long next = segments.higherKey(segment.baseOffset);
+                if (next == null) {
+                    break;
+                }
+                offset = next;
+                continue;
+            }
+            ByteBuffer view = segment.buffer.duplicate();
+            view.position(segment.positionOf(offset));
+            while (n < max && offset < segmentEnd) {
+                int length = view.getInt();
+                view.getInt();
+                int id = view.getInt();
+                byte[] payload = new byte[length];
+                view.get(payload);
+                sink.add(new Message(id, deserialize(payload)));
+                offset++;
+                n++;
+            }
+        }
+        return offset;
+    }
+
+    /**
+     * 等待 offset 处有消息（offset < endOffset）
+     */
+    public void awaitAppended(long offset) {
+        if (offset < nextOffset) {
+            return;
+        }
+        appendLock.lock();
+        try {
+            while (offset >= nextOffset) {
+                appended.awaitUninterruptibly();
+            }
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    public long startOffset() {
+        Map.Entry<Long, Segment> first = segments.firstEntry();
+        return first == null ? nextOffset : first.getKey();
+    }
+
+    public long endOffset() {
+        return nextOffset;
+    }
+
+    /**
+     * 提交消费位置（下一条要消费的 offset） 随下一次刷盘落盘
+     */
+    public void commit(String group, long offset) {
+        offsetBuffer(group).putLong(0, offset);
+    }
+
+    public long committed(String group) {
+        return Math.max(offsetBuffer(group).getLong(0), startOffset());
+    }
+
+    private MappedByteBuffer offsetBuffer(String group) {
+        return groupOffsets.computeIfAbsent(group, g -> {
+            try (FileChannel channel = FileChannel.open(dir.resolve(g + OFFSET_SUFFIX),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                return channel.map(FileChannel.MapMode.READ_WRITE, 0, 8);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    // 持有 appendLock 调用 旧段交给后台线程刷盘 换成新段
+    private void roll() {
+        rolled.add(active);
+        active = openSegment(nextOffset, false);
+        LockSupport.unpark(flusher);
+    }
+
+    private void flushLoop() {
+        try {
+            while (running) {
+                LockSupport.parkNanos(this, flushIntervalNanos);
+                flush();
+                enforceRetention();
+            }
+        } catch (RuntimeException | Error e) {
+            // 叫醒等待落盘的线程 让它们看到失败
+            flushLock.lock();
+            try {
+                flushFailure = e;
+                flushed.signalAll();
+            } finally {
+                flushLock.unlock();
+            }
+            throw e;
+        }
+    }
+
+    private void flush() {
+        Segment segment;
+        List<Segment> olds;
+        long target;
+        appendLock.lock();
+        try {
+            segment = active;
+            olds = rolled;
+            if (!olds.isEmpty()) {
+                rolled = new ArrayList<>();
+            }
+            target = nextOffset;
+            unflushedBytes = 0;
+        } finally {
+            appendLock.unlock();
+        }
+        // 在锁外刷盘 期间的追加不受影响 一次 force 确认之前所有追加
+        for (Segment old : olds) {
+            old.buffer.force();
+        }
+        segment.buffer.force();
+        for (MappedByteBuffer buffer : groupOffsets.values()) {
+            buffer.force();
+        }
+        flushLock.lock();
+        try {
+            if (target > flushedOffset) {
+                flushedOffset = target;
+                flushed.signalAll();
+            }
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    private void enforceRetention() {
+        long now = System.currentTimeMillis();
+        long total = (long) segments.size() * segmentBytes;
+        while (segments.size() > 1) {
+            Map.Entry<Long, Segment> oldest = segments.firstEntry();
+            Segment segment = oldest.getValue();
+            boolean expired = retentionMillis > 0 && now - segment.lastAppendMillis > retentionMillis;
+            boolean oversize = retentionBytes > 0 && total > retentionBytes;
+            if (segment == active || (!expired && !oversize)) {
+                break;
+            }
+            segments.remove(oldest.getKey());
+            total -= segmentBytes;
+            // 映射区在没有引用后由 GC 释放 正在读它的线程不受影响
+            try {
+                segment.channel.close();
+                Files.deleteIfExists(segment.file);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // 打开目录中已有的段 扫描出每个段的记录数和写入位置
+    private void recover() throws IOException {
+        List<Long> bases = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                bases.add(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())));
+            }
+        }
+        bases.sort(null);
+        for (long base : bases) {
+            Segment segment = openSegment(base, true);
+            active = segment;
+            nextOffset = base + segment.count;
+        }
+        if (active == null) {
+            active = openSegment(0, false);
+        }
+        flushedOffset = nextOffset;
+    }
+
+    private Segment openSegment(long baseOffset, boolean existing) {
+        Path file = dir.resolve(String.format("%020d%s", baseOffset, SUFFIX));
+        try {
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+            Segment segment = new Segment(baseOffset, file, channel, buffer);
+            if (existing) {
+                segment.scan();
+            }
+            segments.put(baseOffset, segment);
+            return segment;
+        } catch (IOException e) {
+            throw new UncheckedIOException("cannot open segment " + file, e);
+        }
+    }
+
+    private static byte[] serialize(Object value) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Object deserialize(byte[] payload) {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(payload))) {
+            return in.readObject();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        LockSupport.unpark(flusher);
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+        for (Segment segment : segments.values()) {
+            segment.channel.close();
+        }
+    }
+
+    /**
+     * 一个分段文件
+     *     count、writePosition、index 只由持有 appendLock 的线程修改，
+     *     读线程先读 volatile 的 nextOffset 再读它们，能看到 nextOffset 之前的记录对应的值
+     */
+    static final class Segment {
+        final long baseOffset;
+        final Path file;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+        int writePosition;
+        int count;
+        // 第 i 个元素是第 i * INDEX_INTERVAL 条记录的位置
+        int[] index = new int[16];
+        volatile long lastAppendMillis = System.currentTimeMillis();
+
+        Segment(long baseOffset, Path file, FileChannel channel, MappedByteBuffer buffer) {
+            this.baseOffset = baseOffset;
+            this.file = file;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+
+        void append(int id, byte[] payload, int crc) {
+            if (count % INDEX_INTERVAL == 0) {
+                int slot = count / INDEX_INTERVAL;
+                if (slot == index.length) {
+                    index = Arrays.copyOf(index, index.length * 2);
+                }
+                index[slot] = writePosition;
+            }
+            ByteBuffer view = buffer.duplicate();
+            view.position(writePosition);
+            view.putInt(payload.length).putInt(crc).putInt(id).put(payload);
+            writePosition = view.position();
+            count++;
+            lastAppendMillis = System.currentTimeMillis();
+        }
+
+        int positionOf(long offset) {
+            int relative = (int) (offset - baseOffset);
+            int position = index[relative / INDEX_INTERVAL];
+            // 从索引点往后跳过若干条记录
+            for (int i = relative % INDEX_INTERVAL; i > 0; i--) {
+                position += HEADER + buffer.getInt(position);
+            }
+            return position;
+        }
+
+        // 启动时扫描 遇到长度为 0（未写过的区域）或 crc 不符（写到一半）的记录就停止
+        void scan() {
+            CRC32 crc = new CRC32();
+            int position = 0;
+            while (position + HEADER <= buffer.capacity()) {
+                int length = buffer.getInt(position);
+                if (length <= 0 || position + HEADER + length > buffer.capacity()) {
+                    break;
+                }
+                int id = buffer.getInt(position + 8);
+                byte[] payload = new byte[length];
+                ByteBuffer view = buffer.duplicate();
+                view.position(position + HEADER);
+                view.get(payload);
+                crc.reset();
+                crc.update(id >>> 24);
+                crc.update(id >>> 16);
+                crc.update(id >>> 8);
+                crc.update(id);
+                crc.update(payload);
+                if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+                    break;
+                }
+                if (count % INDEX_INTERVAL == 0) {
+                    int slot = count / INDEX_INTERVAL;
+                    if (slot == index.length) {
+                        index = Arrays.copyOf(index, index.length * 2);
+                    }
+                    index[slot] = position;
+                }
+                count++;
+                position += HEADER + length;
+            }
+            writePosition = position;
+            // 清掉写到一半的残留 避免以后被误认为有效记录
+            for (int i = position; i < Math.min(buffer.capacity(), position + HEADER); i++) {
+                buffer.put(i, (byte) 0);
+            }
+            try {
+                lastAppendMillis = Files.getLastModifiedTime(file).toMillis();
+            } catch (IOException e) {
+                lastAppendMillis = System.currentTimeMillis();
+            }
+        }
+    }
+}
+
+/**
+ * 持久化的消息队列 put/take 的用法与 MessageQueue 相同
+ *     put 追加到日志，take 读出下一条并提交消费位置，重启后从上次提交的位置继续
+ */
+class DurableMessageQueue {
+    private final DurableMessageLog log;
+    private final String group;
+    private final List<Message> buffer = new ArrayList<>(1);
+    private long cursor;
+
+    public DurableMessageQueue(DurableMessageLog log, String group) {
+        this.log = log;
+        this.group = group;
+        this.cursor = log.committed(group);
+    }
+
+    public void put(Message message) {
+        log.append(message);
+    }
+
+    public synchronized Message take() {
+        cursor = Math.max(cursor, log.startOffset());
+        log.awaitAppended(cursor);
+        buffer.clear();
+        cursor = log.read(cursor, 1, buffer);
+        log.commit(group, cursor);
+        return buffer.get(0);
+    }
+}
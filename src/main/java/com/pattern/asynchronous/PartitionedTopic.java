@@ -0,0 +1,357 @@
+package com.pattern.asynchronous;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * @program: su-concurrent
+ * @description: 分区主题与消费组（进程内的简化版 Kafka）
+ *     MessageQueue 的问题：
+ *        只有一个队列，所有消费者竞争同一个 monitor；消息整体有序，但多个消费者并行消费后又不保证任何顺序
+ *     思路：
+ *        1. 主题分成 N 个分区，每个分区是一个 MessageQueue，按消息的 key 取哈希选择分区，同一个 key 的消息总在同一个分区
+ *        2. 消费组：每个组都能收到全部消息（每个组有自己的一套分区队列），组内每个分区同一时刻只分配给一个消费者
+ *           同一个分区的消息由同一个消费者按顺序处理，所以同一个 key 的消息是有序的；不同分区由不同消费者并行处理
+ *        3. 再均衡：消费者加入或离开时，把分区按消费者 id 排序后平均分配（range 分配）
+ *           分区换了主人时，新主人要等旧主人处理完手上的那一批，靠每个分区一把锁保证：拿到锁才能取消息并处理
+ *        4. 投递：分区队列满时发布者等待（背压），但每等一小段时间就检查一次组里是否还有消费者
+ *           没有消费者的组（刚创建还没人加入，或者消费者都离开了）不再投递，消息计入 dropped，不会让发布者永远阻塞、拖住其它组
+ *        5. 处理消息抛出的异常只影响这一条消息；消费线程意外结束时自动离开消费组，它的分区重新分配给其它消费者
+ *        6. 消费者分到的分区都空着时在消费组的 notEmpty 条件上等待（与 ArrayMessageQueue 相同，不轮询）
+ *           一个消费者可能有多个分区，所以条件变量是组级别的：发布者放入后发现有等待的消费者才加锁 signalAll，
+ *           消费者忙的时候发布不加锁；再均衡、离开消费组时也 signalAll，让消费者重新检查自己的分区
+ *     注意：
+ *        消费组只能收到创建之后、且组内有消费者时发布的消息
+ * @author: Su
+ * @create: 2026-10-20 09:30
+ **/
+public class PartitionedTopic {
+    private final int partitionCount;
+    private final int partitionCapacity;
+    private final Map<String, ConsumerGroup> groups = new ConcurrentHashMap<>();
+
+    public PartitionedTopic(int partitionCount, int partitionCapacity) {
+        this.partitionCount = partitionCount;
+        this.partitionCapacity = partitionCapacity;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        PartitionedTopic topic = new PartitionedTopic(8, 1024);
+        ConsumerGroup group = topic.group("订单服务");
+        // 一直没有消费者的组 不能拖住发布者和其它组
+        ConsumerGroup idle = topic.group("审计服务");
+        int keys = 100;
+        // 每个 key 上一次处理到的序号 用于检查同一个 key 是否有序
+        Map<Integer, Integer> lastSeq = new ConcurrentHashMap<>();
+        AtomicInteger outOfOrder = new AtomicInteger();
+        AtomicInteger processed = new AtomicInteger();
+        Map<String, AtomicInteger> perConsumer = new ConcurrentHashMap<>();
+        Consumer<String> join = id -> {
+            AtomicInteger counter = perConsumer.computeIfAbsent(id, k -> new AtomicInteger());
+            group.join(id, message -> {
+                int[] keyAndSeq = (int[]) message.getObject();
+                Integer previous = lastSeq.put(keyAndSeq[0], keyAndSeq[1]);
+                if (previous != null && previous + 1 != keyAndSeq[1]) {
+                    outOfOrder.incrementAndGet();
+                }
+                counter.incrementAndGet();
+                processed.incrementAndGet();
+                if (message.getId() == 1_000) {
+                    // 处理失败只影响这一条消息 消费线程继续工作
+                    throw new IllegalArgumentException("模拟处理失败: " + message);
+                }
+            });
+        };
+        join.accept("c1");
+        join.accept("c2");
+        int[] seq = new int[keys];
+        for (int i = 0; i < 200_000; i++) {
+            int key = i % keys;
+            topic.publish(key, new Message(i, new int[]{key, seq[key]++}));
+            if (i == 50_000) {
+                join.accept("c3");
+            } else if (i == 120_000) {
+                group.leave("c1");
+            }
+        }
+        while (processed.get() < 200_000) {
+            Thread.sleep(10);
+        }
+        System.out.println("各消费者处理条数: " + perConsumer);
+        System.out.println("同一 key 乱序次数: " + outOfOrder.get());
+        System.out.println("无消费者的组丢弃条数: " + idle.dropped());
+        if (outOfOrder.get() != 0) {
+            throw new IllegalStateException("同一 key 的消息乱序: " + outOfOrder.get());
+        }
+        if (processed.get() != 200_000 || idle.dropped() != 200_000) {
+            throw new IllegalStateException("消息数不符: " + processed.get() + ", " + idle.dropped());
+        }
+        group.leave("c2");
+        group.leave("c3");
+    }
+
+    /**
+     * 获取（不存在则创建）消费组
+     */
+    public ConsumerGroup group(String name) {
+        return groups.computeIfAbsent(name, n -> new ConsumerGroup(n, partitionCount, partitionCapacity));
+    }
+
+    public void publish(Object key, Message message) {
+        int partition = partitionOf(key);
+        for (ConsumerGroup group : groups.values()) {
+            group.deliver(partition, message);
+        }
+    }
+
+    int partitionOf(Object key) {
+        int h = key == null ? 0 : key.hashCode();
+        // 打散低位 避免 key 的哈希值只有高位不同时集中在少数分区
+        h ^= h >>> 16;
+        return (h & Integer.MAX_VALUE) % partitionCount;
+    }
+
+    /**
+     * 消费组
+     */
+    static final class ConsumerGroup {
+        private static final int MAX_BATCH = 256;
+        // 分区满时 发布者每等这么久检查一次组里是否还有消费者
+        private static final long DELIVER_CHECK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+        private static final int[] NONE = new int[0];
+        private final String name;
+        final Partition[] partitions;
+        private final Map<String, Member> members = new HashMap<>();
+        // members 的大小 发布者不加锁读取
+        private volatile int memberCount;
+        private final LongAdder dropped = new LongAdder();
+        // 分到的分区都空着的消费者在 notEmpty 上等待
+        private final ReentrantLock idleLock = new ReentrantLock();
+        private final Condition notEmpty = idleLock.newCondition();
+        // 正在等待（或即将等待）的消费者数 发布者不加锁读取 为 0 时不需要唤醒
+        private final AtomicInteger idle = new AtomicInteger();
+        // 消费者 id -> 分配到的分区 每次再均衡整体替换
+        private volatile Map<String, int[]> assignment = Collections.emptyMap();
+
+        ConsumerGroup(String name, int partitionCount, int partitionCapacity) {
+            this.name = name;
+            this.partitions = new Partition[partitionCount];
+            for (int i = 0; i < partitionCount; i++) {
+                partitions[i] = new Partition(partitionCapacity);
+            }
+        }
+
+        /**
+         * 加入消费组 启动一个消费线程
+         */
+        public synchronized void join(String consumerId, Consumer<Message> handler) {
+            if (members.containsKey(consumerId)) {
+                throw new IllegalStateException("consumer already joined: " + consumerId);
+            }
+            Member member = new Member(consumerId, handler);
+            members.put(consumerId, member);
+            rebalance();
+            member.thread.start();
+        }
+
+        /**
+         * 因为没有消费者而丢弃的消息数
+         */
+        public long dropped() {
+            return dropped.sum();
+        }
+
+        void deliver(int partition, Message message) {
+            MessageQueue queue = partitions[partition].queue;
+            while (memberCount > 0) {
+                if (queue.offer(message, DELIVER_CHECK_NANOS, TimeUnit.NANOSECONDS)) {
+                    // 消费者先登记 idle 再检查分区是否为空 发布者先放入再读 idle 两边至少有一边能看到对方
+                    if (idle.get() > 0) {
+                        wakeUp();
+                    }
+                    return;
+                }
+            }
+            dropped.increment();
+        }
+
+        /**
+         * 离开消费组 等它处理完手上的批次后返回
+         */
+        public void leave(String consumerId) {
+            Member member;
+            synchronized (this) {
+                member = members.remove(consumerId);
+                if (member == null) {
+                    return;
+                }
+                member.running = false;
+                rebalance();
+            }
+            wakeUp();
+            try {
+                member.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        // 消费线程意外结束时调用 不能像 leave 那样 join 自己
+        private synchronized void expel(Member member) {
+            if (members.get(member.id) == member) {
+                members.remove(member.id);
+                rebalance();
+            }
+        }
+
+        // range 分配：消费者按 id 排序，分区按顺序平均分给它们，除不尽的部分分给前面的消费者
+        private void rebalance() {
+            List<String> ids = new ArrayList<>(members.keySet());
+            Collections.sort(ids);
+            Map<String, int[]> next = new HashMap<>();
+            int n = ids.size();
+            for (int i = 0; i < n; i++) {
+                int from = partitions.length * i / n;
+                int to = partitions.length * (i + 1) / n;
+                int[] owned = new int[to - from];
+                for (int p = from; p < to; p++) {
+                    owned[p - from] = p;
+                }
+                next.put(ids.get(i), owned);
+            }
+            assignment = next;
+            memberCount = n;
+            // 分区换了主人 等待中的消费者要重新检查自己的分区
+            wakeUp();
+        }
+
+        private void wakeUp() {
+            idleLock.lock();
+            try {
+                notEmpty.signalAll();
+            } finally {
+                idleLock.unlock();
+            }
+        }
+
+        final class Member {
+            private final String id;
+            private final Consumer<Message> handler;
+            private final Thread thread;
+            private volatile boolean running = true;
+
+            Member(String id, Consumer<Message> handler) {
+                this.id = id;
+                this.handler = handler;
+                this.thread = new Thread(this::poll, name + "-" + id);
+                this.thread.setDaemon(true);
+            }
+
+            private void poll() {
+                try {
+                    consume();
+                } finally {
+                    if (running) {
+                        expel(this);
+                    }
+                }
+            }
+
+            private void consume() {
+                List<Message> batch = new ArrayList<>(MAX_BATCH);
+                while (running) {
+                    Map<String, int[]> snapshot = assignment;
+                    int[] owned = snapshot.getOrDefault(id, NONE);
+                    boolean busy = false;
+                    boolean contended = false;
+                    for (int p : owned) {
+                        Partition partition = partitions[p];
+                        // 旧主人还在处理这个分区的批次 下一轮再来
+                        if (!partition.lock.tryLock()) {
+                            contended = true;
+                            continue;
+                        }
+                        try {
+                            // 拿到锁之后再确认一次分区仍然属于自己
+                            int[] current = assignment.get(id);
+                            if (current == null || !contains(current, p)) {
+                                continue;
+                            }
+                            batch.clear();
+                            if (partition.queue.drainTo(batch, MAX_BATCH) > 0) {
+                                busy = true;
+                                for (Message message : batch) {
+                                    try {
+                                        handler.accept(message);
+                                    } catch (RuntimeException e) {
+                                        e.printStackTrace();
+                                    }
+                                }
+                            }
+                        } finally {
+                            partition.lock.unlock();
+                        }
+                    }
+                    if (contended) {
+                        // 只在再均衡交接分区时发生 旧主人处理完这一批就会释放
+                        Thread.yield();
+                    } else if (!busy) {
+                        awaitMessages(snapshot, owned);
+                    }
+                }
+            }
+
+            // 分到的分区都为空时等待 直到有消息放入、再均衡或离开消费组
+            private void awaitMessages(Map<String, int[]> snapshot, int[] owned) {
+                idleLock.lock();
+                idle.incrementAndGet();
+                try {
+                    while (running && assignment == snapshot && allEmpty(owned)) {
+                        notEmpty.awaitUninterruptibly();
+                    }
+                } finally {
+                    idle.decrementAndGet();
+                    idleLock.unlock();
+                }
+            }
+        }
+
+        private boolean allEmpty(int[] owned) {
+            for (int p : owned) {
+                if (!partitions[p].queue.isEmpty()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static boolean contains(int[] owned, int partition) {
+            for (int p : owned) {
+                if (p == partition) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    static final class Partition {
+        final MessageQueue queue;
+        // 持有者才能取消息并处理 保证同一分区同一时刻只有一个消费者在处理
+        final ReentrantLock lock = new ReentrantLock();
+
+        Partition(int capacity) {
+            this.queue = new MessageQueue(capacity);
+        }
+    }
+}
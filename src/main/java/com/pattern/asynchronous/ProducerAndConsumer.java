@@ -1,6 +1,15 @@
 package com.pattern.asynchronous;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 /**
  * @program: su-concurrent
@@ -89,7 +98,365 @@ class MessageQueue{
 
     }
 
+    //存入消息 队列满时最多等待 timeout，超时返回 false
+    public boolean offer(Message message, long timeout, TimeUnit unit){
+        synchronized (list){
+            long nanos=unit.toNanos(timeout);
+            long deadline=System.nanoTime()+nanos;
+            while (list.size()==capcity){
+                if (nanos<=0){
+                    return false;
+                }
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(list, nanos);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+                nanos=deadline-System.nanoTime();
+            }
+            list.addLast(message);
+            list.notifyAll();
+            return true;
+        }
+    }
+
+    //批量存入消息 整批只进一次 monitor，放不下时放入能放的部分 等待后继续
+    public void putAll(List<Message> messages){
+        synchronized (list){
+            int i=0;
+            while (i<messages.size()){
+                while (list.size()==capcity){
+                    try {
+                        list.wait();
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    }
+                }
+                while (i<messages.size() && list.size()<capcity){
+                    list.addLast(messages.get(i++));
+                }
+                list.notifyAll();
+            }
+        }
+    }
+
+    //取走当前所有消息（最多 max 条）放入 sink 不等待 返回取走的条数
+    public int drainTo(Collection<? super Message> sink, int max){
+        synchronized (list){
+            return drain(sink, max);
+        }
+    }
+
+    //至少等到一条消息（超时返回 0），然后取走当前所有消息（最多 max 条）
+    public int drainTo(Collection<? super Message> sink, int max, long timeout, TimeUnit unit){
+        synchronized (list){
+            long nanos=unit.toNanos(timeout);
+            long deadline=System.nanoTime()+nanos;
+            while (list.isEmpty()){
+                if (nanos<=0){
+                    return 0;
+                }
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(list, nanos);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+                nanos=deadline-System.nanoTime();
+            }
+            return drain(sink, max);
+        }
+    }
+
+    public boolean isEmpty(){
+        synchronized (list){
+            return list.isEmpty();
+        }
+    }
+
+    //持有 list 的锁调用 先放入 sink 再移除 sink.add 抛异常时消息留在队列中
+    private int drain(Collection<? super Message> sink, int max){
+        int n=Math.min(max, list.size());
+        int drained=0;
+        try {
+            while (drained<n){
+                sink.add(list.getFirst());
+                list.removeFirst();
+                drained++;
+            }
+        } finally {
+            if (drained>0){
+                list.notifyAll();
+            }
+        }
+        return drained;
+    }
+
+
+}
+
+/**
+ * 基于数组环形缓冲区的消息队列 可以直接替换 MessageQueue（put/take 用法相同）
+ *     MessageQueue 的问题：
+ *         1. LinkedList 每放入一条消息都要分配一个链表节点
+ *         2. 生产者和消费者在同一个 monitor 上 wait，notifyAll 会把两边的线程全部唤醒，
+ *            被唤醒的大部分线程发现条件仍不满足又继续 wait，时间都花在了无效唤醒上
+ *     改进：
+ *         1. 创建时就分配好定长数组，putIndex / takeIndex 循环使用，放入和取出都不再分配对象
+ *         2. 一把 ReentrantLock 两个条件变量（与 ThreadPoolDesign 中的 BlockingQueue 相同）：
+ *            队列满时生产者在 notFull 上等待，队列空时消费者在 notEmpty 上等待
+ *            放入后只 signal 一个消费者，取出后只 signal 一个生产者
+ */
+class ArrayMessageQueue {
+    private final Message[] items;
+    private int takeIndex;
+    private int putIndex;
+    private int count;
+    private final ReentrantLock lock = new ReentrantLock();
+    // 等待队列不空的消费者
+    private final Condition notEmpty = lock.newCondition();
+    // 等待队列不满的生产者
+    private final Condition notFull = lock.newCondition();
+
+    public ArrayMessageQueue(int capcity) {
+        this.items = new Message[capcity];
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int messages = 1_000_000;
+        for (int round = 0; round < 3; round++) {
+            MessageQueue linked = new MessageQueue(1024);
+            ArrayMessageQueue array = new ArrayMessageQueue(1024);
+            System.out.println("MessageQueue 耗时(ms): " + benchmark(linked::put, linked::take, messages));
+            System.out.println("ArrayMessageQueue 耗时(ms): " + benchmark(array::put, array::take, messages));
+            // 放入和取出的条数相同 环形缓冲区的下标和计数回到一致的状态
+            if (array.size() != 0) {
+                throw new IllegalStateException("收发完成后队列不为空: " + array.size());
+            }
+        }
+        // 批量：生产者每次 putAll 64 条，消费者每次 drainTo 最多 256 条
+        for (int round = 0; round < 3; round++) {
+            ArrayMessageQueue queue = new ArrayMessageQueue(1024);
+            List<Message> batch = new ArrayList<>();
+            for (int i = 0; i < 64; i++) {
+                batch.add(new Message(i, "值"));
+            }
+            Thread producer = new Thread(() -> {
+                for (int i = 0; i < messages / batch.size(); i++) {
+                    queue.putAll(batch);
+                }
+            }, "生产者");
+            long start = System.nanoTime();
+            producer.start();
+            List<Message> sink = new ArrayList<>(256);
+            int received = 0;
+            while (received < messages / batch.size() * batch.size()) {
+                sink.clear();
+                received += queue.drainTo(sink, 256, 100, TimeUnit.MILLISECONDS);
+            }
+            producer.join();
+            System.out.println("putAll/drainTo 耗时(ms): " + (System.nanoTime() - start) / 1_000_000);
+            if (received != messages / batch.size() * batch.size() || queue.size() != 0) {
+                throw new IllegalStateException("批量收发的条数不对: " + received + ", 剩余 " + queue.size());
+            }
+        }
+        // sink 放到一半抛异常：已经取走的两条出队 其余的留在队列中 顺序不变
+        ArrayMessageQueue queue = new ArrayMessageQueue(8);
+        for (int i = 0; i < 5; i++) {
+            queue.put(new Message(i, "值" + i));
+        }
+        // 容量为 2 的有界队列 满了之后 add 抛 IllegalStateException
+        ArrayBlockingQueue<Message> partial = new ArrayBlockingQueue<>(2);
+        try {
+            queue.drainTo(partial, 5);
+        } catch (IllegalStateException e) {
+            System.out.println("drainTo 中途失败: " + e.getMessage());
+        }
+        if (partial.size() != 2 || queue.size() != 3 || queue.take().getId() != 2) {
+            throw new IllegalStateException("drainTo 失败后队列状态不一致: " + partial + ", 剩余 " + queue.size());
+        }
+        // 空队列上的限时 drainTo 按时返回 0
+        queue.drainTo(new ArrayList<>(), 8);
+        long start = System.nanoTime();
+        int drained = queue.drainTo(new ArrayList<>(), 8, 50, TimeUnit.MILLISECONDS);
+        long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        System.out.println("空队列限时 drainTo 等待(ms): " + waited);
+        if (drained != 0 || waited < 50) {
+            throw new IllegalStateException("限时 drainTo 没有等满超时时间: " + drained + ", " + waited + "ms");
+        }
+    }
+
+    // 4 个生产者 4 个消费者
+    private static long benchmark(Consumer<Message> put, Supplier<Message> take, int messages) throws InterruptedException {
+        int threads = 4;
+        Message message = new Message(0, "值");
+        Thread[] workers = new Thread[threads * 2];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(() -> {
+                for (int j = 0; j < messages / threads; j++) {
+                    put.accept(message);
+                }
+            }, "生产者" + i);
+            workers[threads + i] = new Thread(() -> {
+                for (int j = 0; j < messages / threads; j++) {
+                    take.get();
+                }
+            }, "消费者" + i);
+        }
+        long start = System.nanoTime();
+        for (Thread t : workers) {
+            t.start();
+        }
+        for (Thread t : workers) {
+            t.join();
+        }
+        return (System.nanoTime() - start) / 1_000_000;
+    }
+
+    //获取消息
+    public Message take() {
+        lock.lock();
+        try {
+            while (count == 0) {
+                try {
+                    notEmpty.await();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+            Message message = items[takeIndex];
+            // 释放引用 让消息可以被回收
+            items[takeIndex] = null;
+            if (++takeIndex == items.length) {
+                takeIndex = 0;
+            }
+            count--;
+            //只唤醒一个等待的生产者
+            notFull.signal();
+            return message;
+        } finally {
+            lock.unlock();
+        }
+    }
 
+    //存入消息
+    public void put(Message message) {
+        lock.lock();
+        try {
+            while (count == items.length) {
+                try {
+                    notFull.await();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+            items[putIndex] = message;
+            if (++putIndex == items.length) {
+                putIndex = 0;
+            }
+            count++;
+            //只唤醒一个等待的消费者
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //批量存入消息 整批只加一次锁，放不下时放入能放的部分 等待后继续
+    public void putAll(List<Message> messages) {
+        lock.lock();
+        try {
+            int i = 0;
+            while (i < messages.size()) {
+                while (count == items.length) {
+                    try {
+                        notFull.await();
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    }
+                }
+                int added = 0;
+                while (i < messages.size() && count < items.length) {
+                    items[putIndex] = messages.get(i++);
+                    if (++putIndex == items.length) {
+                        putIndex = 0;
+                    }
+                    count++;
+                    added++;
+                }
+                // 放入了几条就唤醒几个消费者 没有等待者时 signal 只是一次判空
+                for (int j = 0; j < added; j++) {
+                    notEmpty.signal();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //取走当前所有消息（最多 max 条）放入 sink 不等待 返回取走的条数
+    public int drainTo(Collection<? super Message> sink, int max) {
+        lock.lock();
+        try {
+            return drain(sink, max);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //至少等到一条消息（超时返回 0），然后取走当前所有消息（最多 max 条）
+    public int drainTo(Collection<? super Message> sink, int max, long timeout, TimeUnit unit) {
+        lock.lock();
+        try {
+            long nanos = unit.toNanos(timeout);
+            long deadline = System.nanoTime() + nanos;
+            while (count == 0) {
+                if (nanos <= 0) {
+                    return 0;
+                }
+                try {
+                    notEmpty.awaitNanos(nanos);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+                // 被打断时 awaitNanos 没有返回剩余时间 按截止时间重新计算
+                nanos = deadline - System.nanoTime();
+            }
+            return drain(sink, max);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //持有锁调用 逐条移动 sink.add 抛异常时已经取走的消息和下标、计数保持一致
+    private int drain(Collection<? super Message> sink, int max) {
+        int n = Math.min(max, count);
+        int drained = 0;
+        try {
+            while (drained < n) {
+                sink.add(items[takeIndex]);
+                items[takeIndex] = null;
+                if (++takeIndex == items.length) {
+                    takeIndex = 0;
+                }
+                count--;
+                drained++;
+            }
+        } finally {
+            for (int i = 0; i < drained; i++) {
+                notFull.signal();
+            }
+        }
+        return drained;
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
 }
 
 final class Message{
@@ -0,0 +1,217 @@
+package com.pattern.asynchronous;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * @program: su-concurrent
+ * @description: 消息槽可回收的消息队列（消息路径上不分配对象）
+ *     问题：
+ *        每条消息 new Message(id, value)，MessageQueue 还要再分配一个 LinkedList 节点，每秒上百万条消息就是上百万个垃圾对象
+ *     思路：
+ *        1. 创建时预先分配好一圈消息槽（MessageSlot），之后一直复用，不再创建消息对象
+ *        2. 生产者：claim 占一个空槽 -> 往槽里填 id、基本类型的值和可选的 payload 引用 -> publish 发布
+ *           消费者：take 拿到一个已发布的槽 -> 直接在槽上处理 -> release 还回去，槽又可以被生产者占用
+ *        3. 环形数组 + 每个槽一个序号（Dmitry Vyukov 的有界多生产者多消费者队列）：
+ *           生产者和消费者各自 cas 推进 tail / head 抢位置，抢到后通过槽的序号交接（publish、release 就是写一次 volatile 序号）
+ *           没有锁，也就没有 AQS 等待节点；队列满或空时先自旋，再 yield，最后 parkNanos，等待过程中也不分配对象
+ *     注意：
+ *        槽是按环的顺序复用的，某个消费者迟迟不 release，生产者绕一圈回来时会在这个槽上等待
+ *        release 之后不能再访问这个槽；payload 如果是新建的对象，分配发生在调用者那里
+ * @author: Su
+ * @create: 2026-10-20 13:10
+ **/
+public class RecyclingMessageQueue {
+    private static final int SPIN_TRIES = 100;
+    private static final int YIELD_TRIES = 100;
+    private static final long PARK_NANOS = 50_000;
+
+    private final MessageSlot[] slots;
+    private final int mask;
+    // 下一个要发布的位置 与下一个要消费的位置
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong head = new AtomicLong();
+
+    /**
+     * @param capcity 槽的个数 会向上取为 2 的幂
+     */
+    public RecyclingMessageQueue(int capcity) {
+        int size = 1;
+        while (size < capcity) {
+            size <<= 1;
+        }
+        this.slots = new MessageSlot[size];
+        this.mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            // 初始序号等于位置 表示该槽空闲 可以被第 i 次 claim 占用
+            slots[i] = new MessageSlot(i);
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        RecyclingMessageQueue queue = new RecyclingMessageQueue(1024);
+        int messages = 5_000_000;
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long[] allocated = new long[2];
+        long[] checksum = new long[1];
+        Thread producer = new Thread(() -> {
+            long before = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            for (int i = 0; i < messages; i++) {
+                MessageSlot slot = queue.claim();
+                slot.setId(i);
+                slot.setValue(i * 10L);
+                queue.publish(slot);
+            }
+            allocated[0] = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+        }, "生产者");
+        Thread consumer = new Thread(() -> {
+            long before = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            long sum = 0;
+            for (int i = 0; i < messages; i++) {
+                MessageSlot slot = queue.take();
+                sum += slot.getValue();
+                queue.release(slot);
+            }
+            allocated[1] = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+            checksum[0] = sum;
+        }, "消费者");
+        long start = System.nanoTime();
+        producer.start();
+        consumer.start();
+        producer.join();
+        consumer.join();
+        System.out.println(messages + " 条消息耗时(ms): " + (System.nanoTime() - start) / 1_000_000);
+        System.out.println("校验和: " + checksum[0]);
+        System.out.println("生产者分配字节数: " + allocated[0] + ", 消费者分配字节数: " + allocated[1]);
+        // 每条消息恰好被消费一次：value = id * 10 之和
+        if (checksum[0] != 10L * messages * (messages - 1) / 2) {
+            throw new IllegalStateException("消息丢失或重复: " + checksum[0]);
+        }
+        // 每条消息分配一个对象就是上百 MB 这里只允许 JIT、类加载等零星分配
+        if (allocated[0] > 64 * 1024 || allocated[1] > 64 * 1024) {
+            throw new IllegalStateException("消息路径上有对象分配");
+        }
+    }
+
+    /**
+     * 占用一个空槽 没有空槽时等待
+     */
+    public MessageSlot claim() {
+        int idle = 0;
+        while (true) {
+            long position = tail.get();
+            MessageSlot slot = slots[(int) position & mask];
+            long diff = slot.sequence - position;
+            if (diff == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    slot.position = position;
+                    return slot;
+                }
+            } else if (diff < 0) {
+                // 槽还没有被上一轮的消费者 release 队列满
+                idle = idle(idle);
+            }
+            // diff > 0 说明 tail 已被其它生产者推进 重新读
+        }
+    }
+
+    /**
+     * 发布填好的槽 消费者可见
+     */
+    public void publish(MessageSlot slot) {
+        slot.sequence = slot.position + 1;
+    }
+
+    /**
+     * 获取下一个已发布的槽 没有时等待
+     */
+    public MessageSlot take() {
+        int idle = 0;
+        while (true) {
+            long position = head.get();
+            MessageSlot slot = slots[(int) position & mask];
+            long diff = slot.sequence - (position + 1);
+            if (diff == 0) {
+                if (head.compareAndSet(position, position + 1)) {
+                    slot.position = position;
+                    return slot;
+                }
+            } else if (diff < 0) {
+                // 还没有发布 队列空
+                idle = idle(idle);
+            }
+        }
+    }
+
+    /**
+     * 处理完后归还 清掉 payload 引用 让它指向的对象可以被回收
+     */
+    public void release(MessageSlot slot) {
+        slot.payload = null;
+        slot.sequence = slot.position + slots.length;
+    }
+
+    // 等待策略：自旋 -> yield -> park
+    private static int idle(int idle) {
+        if (idle < SPIN_TRIES) {
+            return idle + 1;
+        }
+        if (idle < SPIN_TRIES + YIELD_TRIES) {
+            Thread.yield();
+            return idle + 1;
+        }
+        LockSupport.parkNanos(PARK_NANOS);
+        return idle;
+    }
+}
+
+/**
+ * 可复用的消息槽 字段在 claim 和 publish 之间由生产者填写，在 take 和 release 之间由消费者读取
+ *     序号的 volatile 写 / 读保证了普通字段在两者之间的可见性
+ */
+final class MessageSlot {
+    volatile long sequence;
+    // 本次占用对应的位置 只由当前持有者访问
+    long position;
+    private int id;
+    private long value;
+    Object payload;
+
+    MessageSlot(long sequence) {
+        this.sequence = sequence;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public void setId(int id) {
+        this.id = id;
+    }
+
+    public long getValue() {
+        return value;
+    }
+
+    public void setValue(long value) {
+        this.value = value;
+    }
+
+    public Object getPayload() {
+        return payload;
+    }
+
+    public void setPayload(Object payload) {
+        this.payload = payload;
+    }
+
+    @Override
+    public String toString() {
+        return "MessageSlot{" +
+                "id=" + id +
+                ", value=" + value +
+                ", payload=" + payload +
+                '}';
+    }
+}